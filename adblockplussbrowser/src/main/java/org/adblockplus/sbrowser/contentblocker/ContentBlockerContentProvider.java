@@ -40,9 +40,27 @@ public class ContentBlockerContentProvider extends ContentProvider
 {
   private static final String TAG = ContentBlockerContentProvider.class.getSimpleName();
 
+  /**
+   * Returns the version, hash, filter count and size of the filter file {@link #openFile} delivers,
+   * see {@link Engine#getSnapshotInfo}.
+   */
+  public static final String METHOD_GET_SNAPSHOT_INFO = "getSnapshotInfo";
+
   @Override
   public Bundle call(@NonNull String method, String arg, Bundle extras)
   {
+    if (METHOD_GET_SNAPSHOT_INFO.equals(method))
+    {
+      try
+      {
+        return Engine.getSnapshotInfo(getContext());
+      }
+      catch (IOException e)
+      {
+        Log.e(TAG, "Failed to get snapshot info: " + e.getMessage(), e);
+        return null;
+      }
+    }
     // As of SBC interface v1.4 we return `null` here to signal that we do not
     // use encryption
     return null;
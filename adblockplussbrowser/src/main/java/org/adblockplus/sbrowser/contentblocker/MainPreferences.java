@@ -298,7 +298,7 @@ public class MainPreferences extends PreferenceActivity implements
     {
       if (getString(R.string.key_automatic_updates).equals(key) && engine != null)
       {
-        engine.connectivityChanged();
+        engine.automaticUpdatesChanged();
       }
       else if (getString(R.string.key_acceptable_ads).equals(key) && engine != null)
       {
@@ -0,0 +1,228 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+/**
+ * Crash safe replacement of files. The new content gets written to a temporary file next to the
+ * target, which is synced and then renamed to the target, then the directory is synced to make the
+ * rename durable. A process dying at any point leaves either the previous or the new file behind,
+ * plus possibly a temporary file, which {@link #recover(File, Validator)} cleans up on the next
+ * start.
+ */
+final class AtomicFiles
+{
+  private static final String TAG = AtomicFiles.class.getSimpleName();
+  static final String TEMP_SUFFIX = ".tmp";
+
+  /**
+   * The steps of a write which reach the file system. Tests replace them by
+   * {@link #setFileSystem(FileSystem)} to simulate the process dying in between.
+   */
+  static class FileSystem
+  {
+    void sync(final FileOutputStream out) throws IOException
+    {
+      out.getFD().sync();
+    }
+
+    void rename(final File from, final File to) throws IOException
+    {
+      if (!from.renameTo(to))
+      {
+        throw new IOException("Failed to replace " + to);
+      }
+    }
+
+    /**
+     * Makes a rename in {@code dir} durable, without it a power failure might bring back the
+     * previous file.
+     */
+    void syncDirectory(final File dir)
+    {
+      try
+      {
+        final FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+        try
+        {
+          Os.fsync(fd);
+        }
+        finally
+        {
+          Os.close(fd);
+        }
+      }
+      catch (final Throwable t)
+      {
+        // Not every file system can sync directories, the rename itself succeeded
+        Log.w(TAG, "Failed to sync " + dir + ": " + t.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Decides whether a temporary file found by {@link AtomicFiles#recover(File, Validator)} was
+   * written completely.
+   */
+  interface Validator
+  {
+    boolean isComplete(File temp);
+  }
+
+  private static volatile FileSystem fileSystem = new FileSystem();
+
+  private AtomicFiles()
+  {
+    // Static helpers only
+  }
+
+  static File getTempFile(final File target)
+  {
+    return new File(target.getPath() + TEMP_SUFFIX);
+  }
+
+  /**
+   * Opens the temporary file for replacing {@code target}.
+   *
+   * @param target
+   * @return the stream to write the new content to
+   * @throws IOException
+   */
+  static FileOutputStream startWrite(final File target) throws IOException
+  {
+    return new FileOutputStream(getTempFile(target));
+  }
+
+  /**
+   * Syncs and closes {@code out}, then replaces {@code target} with the temporary file and syncs
+   * the directory. Buffered streams wrapping {@code out} need to be flushed before.
+   *
+   * @param out
+   *          the stream returned by {@link #startWrite(File)}
+   * @param target
+   * @throws IOException
+   */
+  static void finishWrite(final FileOutputStream out, final File target) throws IOException
+  {
+    final FileSystem fs = fileSystem;
+    out.flush();
+    fs.sync(out);
+    out.close();
+    fs.rename(getTempFile(target), target);
+    fs.syncDirectory(target.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Closes {@code out} and deletes the temporary file, leaving {@code target} untouched.
+   */
+  static void abortWrite(final FileOutputStream out, final File target)
+  {
+    try
+    {
+      out.close();
+    }
+    catch (final IOException e)
+    {
+      // Ignored, the file gets deleted anyway
+    }
+    getTempFile(target).delete();
+  }
+
+  /**
+   * Replaces {@code target} with the already written file {@code source}, like
+   * {@link #finishWrite(FileOutputStream, File)} does with the temporary file. Both need to be on
+   * the same file system.
+   *
+   * @param source
+   * @param target
+   * @throws IOException
+   */
+  static void move(final File source, final File target) throws IOException
+  {
+    final FileSystem fs = fileSystem;
+    try (final FileOutputStream out = new FileOutputStream(source, true))
+    {
+      fs.sync(out);
+    }
+    fs.rename(source, target);
+    fs.syncDirectory(target.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Cleans up after writes which got interrupted. A temporary file gets renamed to its target if
+   * the target is missing and {@code validator} accepts it, otherwise it gets deleted, as the target
+   * still holds the previous content.
+   *
+   * @param folder
+   * @param validator
+   * @return the number of recovered files
+   */
+  static int recover(final File folder, final Validator validator)
+  {
+    int recovered = 0;
+    final File[] files = folder.listFiles();
+    if (files == null)
+    {
+      return recovered;
+    }
+    for (final File temp : files)
+    {
+      final String path = temp.getPath();
+      if (!path.endsWith(TEMP_SUFFIX))
+      {
+        continue;
+      }
+      final File target = new File(path.substring(0, path.length() - TEMP_SUFFIX.length()));
+      if (!target.exists() && validator.isComplete(temp) && temp.renameTo(target))
+      {
+        Log.d(TAG, "Recovered " + target.getName());
+        recovered++;
+      }
+      else if (temp.delete())
+      {
+        Log.d(TAG, "Deleted interrupted write " + temp.getName());
+      }
+    }
+    if (recovered > 0)
+    {
+      fileSystem.syncDirectory(folder);
+    }
+    return recovered;
+  }
+
+  /**
+   * Replaces the file system steps of all following writes, only meant for tests.
+   *
+   * @param replacement
+   * @return the previous steps, to be restored by the caller
+   */
+  static FileSystem setFileSystem(final FileSystem replacement)
+  {
+    final FileSystem previous = fileSystem;
+    fileSystem = replacement;
+    return previous;
+  }
+}
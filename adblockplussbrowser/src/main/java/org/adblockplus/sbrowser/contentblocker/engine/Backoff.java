@@ -0,0 +1,56 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter. The delay doubles with every attempt up to a maximum; a random
+ * half of it is added on top of the other half, so clients failing at the same time don't retry
+ * at the same time as well.
+ */
+final class Backoff
+{
+  private static final Random RANDOM = new Random();
+
+  private Backoff()
+  {
+    // Static helpers only
+  }
+
+  /**
+   * @param attempt
+   *          number of attempts which already failed, starting with 0
+   * @param baseMillis
+   *          delay after the first failure
+   * @param maxMillis
+   *          upper limit for the delay
+   * @return a delay between half of and the full backoff for {@code attempt}
+   */
+  static long delay(final int attempt, final long baseMillis, final long maxMillis)
+  {
+    long backoff = baseMillis;
+    for (int i = 0; i < attempt && backoff < maxMillis; i++)
+    {
+      backoff *= 2;
+    }
+    backoff = Math.min(backoff, maxMillis);
+    final long half = backoff / 2;
+    return backoff - half + (long) (RANDOM.nextDouble() * (half + 1));
+  }
+}
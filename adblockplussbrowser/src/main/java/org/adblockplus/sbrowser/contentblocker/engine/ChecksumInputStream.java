@@ -0,0 +1,261 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Base64;
+
+/**
+ * Computes the {@code ! Checksum:} of a filter list while it is being read.
+ * <p>
+ * The checksum is the unpadded base64 encoded MD5 of the list with carriage returns and empty
+ * lines removed and without the checksum line itself. Lists without a checksum line are not
+ * verified.
+ */
+final class ChecksumInputStream extends FilterInputStream
+{
+  private static final Pattern CHECKSUM_LINE =
+      Pattern.compile("^\\s*!\\s*checksum[\\s\\-:]+([\\w+/=]+)", Pattern.CASE_INSENSITIVE);
+
+  private final MessageDigest md5;
+  private byte[] line = new byte[256];
+  private int lineLength = 0;
+  private boolean newlineDigested = false;
+  private boolean finished = false;
+  private String expected = null;
+  private String actual = null;
+  private long digestNanos = 0;
+
+  /**
+   * Thrown if a filter list doesn't match its checksum.
+   */
+  static final class MismatchException extends IOException
+  {
+    private static final long serialVersionUID = 1L;
+
+    MismatchException(final String message)
+    {
+      super(message);
+    }
+  }
+
+  ChecksumInputStream(final InputStream in) throws IOException
+  {
+    super(in);
+    try
+    {
+      this.md5 = MessageDigest.getInstance("MD5");
+    }
+    catch (final NoSuchAlgorithmException e)
+    {
+      throw new IOException("MD5 is unavailable: " + e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public int read() throws IOException
+  {
+    final int b = this.in.read();
+    if (b == -1)
+    {
+      this.finish();
+    }
+    else
+    {
+      this.update((byte) b);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] buffer, final int offset, final int length) throws IOException
+  {
+    final int read = this.in.read(buffer, offset, length);
+    final long start = System.nanoTime();
+    if (read == -1)
+    {
+      this.finish();
+    }
+    for (int i = 0; i < read; i++)
+    {
+      this.update(buffer[offset + i]);
+    }
+    this.digestNanos += System.nanoTime() - start;
+    return read;
+  }
+
+  @Override
+  public long skip(final long count) throws IOException
+  {
+    if (count <= 0)
+    {
+      return 0;
+    }
+    // Skipped bytes still need to be digested
+    final byte[] buffer = new byte[(int) Math.min(count, 8192)];
+    long skipped = 0;
+    while (skipped < count)
+    {
+      final int read = this.read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+      if (read == -1)
+      {
+        break;
+      }
+      skipped += read;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported()
+  {
+    return false;
+  }
+
+  /**
+   * @return the checksum given by the list, or {@code null} if it has none
+   */
+  String getExpected()
+  {
+    return this.expected;
+  }
+
+  /**
+   * @return the time spent computing the checksum, excluding the time spent waiting for data
+   */
+  long getDigestMillis()
+  {
+    return this.digestNanos / 1000000;
+  }
+
+  /**
+   * @return the checksum of the data read so far, ends the computation
+   */
+  String getActual()
+  {
+    if (this.actual == null)
+    {
+      this.finish();
+      this.actual = Base64.encodeToString(this.md5.digest(),
+          Base64.NO_PADDING | Base64.NO_WRAP);
+    }
+    return this.actual;
+  }
+
+  /**
+   * @throws MismatchException
+   *           if the list has a checksum which doesn't match the data read
+   */
+  void verify() throws MismatchException
+  {
+    final String actual = this.getActual();
+    if (this.expected != null && !this.expected.equals(actual))
+    {
+      throw new MismatchException("Expected checksum " + this.expected + ", got " + actual);
+    }
+  }
+
+  private void update(final byte b)
+  {
+    if (b == '\r')
+    {
+      return;
+    }
+    if (b == '\n')
+    {
+      this.endLine(true);
+      return;
+    }
+    if (this.lineLength == this.line.length)
+    {
+      this.line = Arrays.copyOf(this.line, this.line.length * 2);
+    }
+    this.line[this.lineLength++] = b;
+  }
+
+  private void finish()
+  {
+    if (!this.finished)
+    {
+      this.finished = true;
+      this.endLine(false);
+    }
+  }
+
+  private void endLine(final boolean terminated)
+  {
+    if (this.lineLength == 0)
+    {
+      // Runs of line breaks count as one
+      if (terminated && !this.newlineDigested)
+      {
+        this.md5.update((byte) '\n');
+        this.newlineDigested = true;
+      }
+      return;
+    }
+    final int length = this.lineLength;
+    this.lineLength = 0;
+    if (this.parseChecksumLine(length) && terminated)
+    {
+      return;
+    }
+    this.md5.update(this.line, 0, length);
+    if (terminated)
+    {
+      this.md5.update((byte) '\n');
+    }
+    this.newlineDigested = terminated;
+  }
+
+  /**
+   * @return {@code true} if the current line is a checksum line, which isn't part of the digest
+   */
+  private boolean parseChecksumLine(final int length)
+  {
+    int start = 0;
+    while (start < length && (this.line[start] == ' ' || this.line[start] == '\t'))
+    {
+      start++;
+    }
+    if (start == length || this.line[start] != '!')
+    {
+      return false;
+    }
+    final Matcher matcher = CHECKSUM_LINE.matcher(
+        new String(this.line, 0, length, StandardCharsets.UTF_8));
+    if (!matcher.find())
+    {
+      return false;
+    }
+    if (this.expected == null)
+    {
+      this.expected = matcher.group(1);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+import android.util.Log;
+
+/**
+ * The whitelisted websites, compiled into {@code @@||host^$document} exception filters.
+ * <p>
+ * Hosts are lower cased and deduplicated, and hosts whose parent domain is whitelisted as well are
+ * left out, as the parent's filter already covers them. Compiling parses every website, so the
+ * result is kept until the whitelisted websites change, see {@link #isCompiledFrom(Set)}.
+ */
+final class CompiledWhitelist
+{
+  private static final String TAG = CompiledWhitelist.class.getSimpleName();
+
+  private final Set<String> websites;
+  private final List<String> filters;
+  private final int version;
+
+  private CompiledWhitelist(final Set<String> websites, final List<String> filters,
+      final int version)
+  {
+    this.websites = websites;
+    this.filters = filters;
+    this.version = version;
+  }
+
+  /**
+   * @param websites
+   *          whitelisted websites, as URLs or host names
+   * @param version
+   *          identifies this compilation in logs
+   * @return the compiled whitelist
+   */
+  static CompiledWhitelist compile(final Set<String> websites, final int version)
+  {
+    final HashSet<String> hosts = new HashSet<>();
+    for (final String website : websites)
+    {
+      final String host = getHost(website);
+      if (host != null)
+      {
+        hosts.add(host);
+      }
+      else
+      {
+        Log.w(TAG, "Failed to parse whitelisted website: " + website);
+      }
+    }
+
+    final TreeSet<String> collapsed = new TreeSet<>();
+    for (final String host : hosts)
+    {
+      if (!hasParent(host, hosts))
+      {
+        collapsed.add(host);
+      }
+    }
+
+    final ArrayList<String> filters = new ArrayList<>(collapsed.size());
+    for (final String host : collapsed)
+    {
+      filters.add("@@||" + host + "^$document");
+    }
+    Log.d(TAG, "Compiled " + websites.size() + " whitelisted websites into " + filters.size()
+        + " filters, version " + version);
+    return new CompiledWhitelist(new HashSet<>(websites), Collections.unmodifiableList(filters),
+        version);
+  }
+
+  /**
+   * @return {@code true} if this whitelist was compiled from the given websites
+   */
+  public boolean isCompiledFrom(final Set<String> websites)
+  {
+    return this.websites.equals(websites);
+  }
+
+  public List<String> getFilters()
+  {
+    return this.filters;
+  }
+
+  public int getVersion()
+  {
+    return this.version;
+  }
+
+  /**
+   * @return the normalized host of {@code website}, or {@code null} if it has none
+   */
+  static String getHost(final String website)
+  {
+    String host;
+    try
+    {
+      final URI uri = new URI(website.trim());
+      // Websites without a scheme are parsed as a path
+      host = uri.getHost() != null ? uri.getHost() : uri.getPath();
+    }
+    catch (final URISyntaxException e)
+    {
+      return null;
+    }
+    if (host == null)
+    {
+      return null;
+    }
+    final int slash = host.indexOf('/');
+    if (slash != -1)
+    {
+      host = host.substring(0, slash);
+    }
+    host = host.toLowerCase(Locale.ENGLISH);
+    while (host.endsWith("."))
+    {
+      host = host.substring(0, host.length() - 1);
+    }
+    return host.isEmpty() ? null : host;
+  }
+
+  private static boolean hasParent(final String host, final Set<String> hosts)
+  {
+    for (int i = host.indexOf('.'); i != -1; i = host.indexOf('.', i + 1))
+    {
+      if (hosts.contains(host.substring(i + 1)))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+}
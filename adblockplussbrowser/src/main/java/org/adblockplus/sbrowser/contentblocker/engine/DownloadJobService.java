@@ -17,31 +17,25 @@
 
 package org.adblockplus.sbrowser.contentblocker.engine;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Map;
 
 import android.app.job.JobParameters;
 import android.app.job.JobService;
 import android.content.Intent;
-import android.os.AsyncTask;
-import android.os.PersistableBundle;
 import android.util.Log;
 
-import javax.net.ssl.HttpsURLConnection;
-
 /**
- * JobService that handles download jobs
+ * JobService running the scheduled update checks. The downloads of all due subscriptions are
+ * batched into one job, which finishes once the downloads completed.
  */
 public class DownloadJobService extends JobService implements EngineManager.OnEngineCreatedCallback
 {
   private static final String TAG = DownloadJobService.class.getSimpleName();
-  private DownloadJobAsyncTask downloadJobAsyncTask = null;
+  // Jobs started before the engine was created
+  private final ArrayList<JobParameters> pendingJobs = new ArrayList<>();
+  // Callbacks of the running update checks, by job
+  private final HashMap<JobParameters, Runnable> runningJobs = new HashMap<>();
   private Engine engine = null;
 
   @Override
@@ -62,39 +56,37 @@ public class DownloadJobService extends JobService implements EngineManager.OnEn
   public boolean onStartJob(final JobParameters params)
   {
     Log.i(TAG, "Job with id " + params.getJobId() + " started.");
-    this.downloadJobAsyncTask = new DownloadJobAsyncTask()
+    if (params.getJobId() != Engine.JOB_ID_UPDATE_CHECK)
     {
-      @Override
-      protected void onPostExecute(final DownloadJob job)
-      {
-        Log.i(DownloadJobService.TAG, "Job with id " + params.getJobId() + " finished.");
-        jobFinished(params, false);
-        if (engine != null && job != null)
-        {
-          engine.downloadFinished(job.id, job.responseCode, job.responseText, job.headers);
-        }
-      }
-    };
-    try
+      Log.w(TAG, "Unknown job " + params.getJobId());
+      return false;
+    }
+    if (this.engine == null)
     {
-      this.downloadJobAsyncTask.execute(createDownloadJobFromExtras(params.getExtras()));
+      this.pendingJobs.add(params);
     }
-    catch (final MalformedURLException e)
+    else
     {
-      Log.e(TAG, "Malformed URL, cannot create download.", e);
-      return false;
+      this.runUpdateCheck(params);
     }
     return true;
   }
 
   @Override
-  public boolean onStopJob(JobParameters params)
+  public boolean onStopJob(final JobParameters params)
   {
-    if (downloadJobAsyncTask != null)
+    // Started downloads complete in the process anyway, the next period checks again
+    this.pendingJobs.remove(params);
+    final Runnable finished;
+    synchronized (this.runningJobs)
     {
-      downloadJobAsyncTask.cancel(true);
+      finished = this.runningJobs.remove(params);
     }
-    return true;
+    if (finished != null)
+    {
+      this.engine.cancelScheduledUpdateCheck(finished);
+    }
+    return false;
   }
 
   @Override
@@ -105,95 +97,43 @@ public class DownloadJobService extends JobService implements EngineManager.OnEn
     super.onDestroy();
   }
 
-  private DownloadJob createDownloadJobFromExtras(final PersistableBundle extras) throws MalformedURLException
-  {
-    return new DownloadJob(
-        new URL(extras.getString(Notification.KEY_EXTRA_URL)),
-        extras.getString(Notification.KEY_EXTRA_ID),
-        null);
-  }
-
   @Override
   public void onEngineCreated(final Engine engine)
   {
     this.engine = engine;
-  }
-
-  private static class DownloadJobAsyncTask extends AsyncTask<DownloadJob, Void, DownloadJob>
-  {
-    public static final String TAG = DownloadJobAsyncTask.class.getSimpleName();
-
-    @Override
-    protected DownloadJob doInBackground(final DownloadJob... downloadJob)
+    for (final JobParameters params : this.pendingJobs)
     {
-      final DownloadJob job = downloadJob[0];
-      try
+      if (engine != null)
       {
-        return download(job);
+        this.runUpdateCheck(params);
       }
-      catch (Exception e)
+      else
       {
-        Log.e(TAG, "Error at download: ", e);
-        return null;
+        jobFinished(params, true);
       }
     }
+    this.pendingJobs.clear();
+  }
 
-    private DownloadJob download(final DownloadJob job) throws IOException
+  private void runUpdateCheck(final JobParameters params)
+  {
+    final Runnable finished = new Runnable()
     {
-      final HttpsURLConnection connection = (HttpsURLConnection) job.url.openConnection();
-      connection.setRequestMethod("GET");
-      for (final Map.Entry<String, String> e : job.headers.entrySet())
-      {
-        connection.addRequestProperty(e.getKey(), e.getValue());
-      }
-      connection.connect();
-      job.responseCode = connection.getResponseCode();
-      job.responseHeaders.clear();
-      job.responseText = null;
-
-      for (int i = 1; ; i++)
-      {
-        final String key = connection.getHeaderFieldKey(i);
-        if (key == null)
-        {
-          break;
-        }
-        final String value = connection.getHeaderField(i);
-        job.responseHeaders.put(key.toLowerCase(), value);
-      }
-
-      final StringBuilder sb = new StringBuilder();
-      try (final BufferedReader r = new BufferedReader(new InputStreamReader(
-          connection.getInputStream(), StandardCharsets.UTF_8)))
+      @Override
+      public void run()
       {
-        for (int ch = r.read(); ch != -1; ch = r.read())
+        synchronized (runningJobs)
         {
-          sb.append((char) ch);
+          runningJobs.remove(params);
         }
-        job.responseText = sb.toString();
+        Log.i(TAG, "Job with id " + params.getJobId() + " finished.");
+        jobFinished(params, false);
       }
-      return job;
-    }
-  }
-
-  private static class DownloadJob
-  {
-    private final URL url;
-    private final String id;
-    private final HashMap<String, String> headers = new HashMap<>();
-
-    private int responseCode;
-    private final HashMap<String, String> responseHeaders = new HashMap<>();
-    private String responseText;
-
-    DownloadJob(final URL url, final String id, final Map<String, String> headers)
+    };
+    synchronized (this.runningJobs)
     {
-      this.url = url;
-      this.id = id;
-      if (headers != null)
-      {
-        this.headers.putAll(headers);
-      }
+      this.runningJobs.put(params, finished);
     }
+    this.engine.runScheduledUpdateCheck(finished);
   }
 }
@@ -17,38 +17,115 @@
 
 package org.adblockplus.sbrowser.contentblocker.engine;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import org.adblockplus.sbrowser.contentblocker.util.SubscriptionUtils;
 import android.annotation.SuppressLint;
 import android.util.Log;
 
+/**
+ * Downloads filter lists on a small pool of worker threads. The number of concurrent downloads per
+ * host is limited, jobs for a busy host wait until one of its downloads finished. Connections are
+ * kept alive and reused, as most lists come from the same host.
+ * <p>
+ * Jobs are started in order of their {@link Priority}. Waiting jobs age, so a job of a lower
+ * priority class eventually passes newer jobs of a higher one.
+ * <p>
+ * Failed downloads are retried with exponential backoff. Hosts failing repeatedly are blocked for
+ * a while by a {@link HostCircuitBreaker}, their jobs wait until the host may be tried again.
+ */
 @SuppressLint("DefaultLocale")
 final class Downloader
 {
   private static final int MAX_RETRIES = 5;
+  private static final int PEEK_LIMIT = 256;
+  private static final int DEFAULT_WORKERS = 3;
+  private static final int DEFAULT_MAX_DOWNLOADS_PER_HOST = 2;
+  private static final long RETRY_BASE_DELAY_MILLIS = 5 * 1000;
+  private static final long RETRY_MAX_DELAY_MILLIS = 5 * 60 * 1000;
+  private static final int HOST_FAILURE_THRESHOLD = 3;
+  private static final long HOST_BLOCK_BASE_MILLIS = 60 * 1000;
+  private static final long HOST_BLOCK_MAX_MILLIS = 30 * 60 * 1000;
+  // Responses larger than this are not read to the end just to reuse the connection
+  private static final int MAX_DISCARDED_BYTES = 64 * 1024;
 
   private static final String TAG = Downloader.class.getSimpleName();
   private final Engine engine;
   private final ReentrantLock accessLock = new ReentrantLock();
-  private Thread downloaderThread;
-  private final LinkedBlockingQueue<DownloadJob> downloadJobs = new LinkedBlockingQueue<>();
+  // Signalled whenever connectivity changed, workers wait on it while downloading is disabled
+  private final Condition connectivityChanged = this.accessLock.newCondition();
+  private final ArrayList<Thread> workerThreads = new ArrayList<>();
+  private final PriorityBlockingQueue<DownloadJob> downloadJobs = new PriorityBlockingQueue<>();
   private final HashSet<String> enqueuedIds = new HashSet<>();
+  private final ArrayList<Runnable> idleCallbacks = new ArrayList<>();
+  private final int maxDownloadsPerHost;
+  private final HashMap<String, Integer> activeDownloads = new HashMap<>();
+  private final HashMap<String, ArrayDeque<DownloadJob>> waitingJobs = new HashMap<>();
+  private final HostCircuitBreaker circuitBreaker = new HostCircuitBreaker(
+      HOST_FAILURE_THRESHOLD, HOST_BLOCK_BASE_MILLIS, HOST_BLOCK_MAX_MILLIS);
+  private final ScheduledExecutorService retryScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+          final Thread thread = new Thread(runnable, "DownloadRetries");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
   private boolean downloaderEnabled = true;
+  private long connectivityVersion = 0;
+  private final long[] waitCount = new long[Priority.values().length];
+  private final long[] waitTotalMillis = new long[Priority.values().length];
+  private final long[] waitMaxMillis = new long[Priority.values().length];
+  private int checksumFailures = 0;
+
+  enum Priority
+  {
+    /** Downloads the user is waiting for, e.g. after enabling a subscription */
+    USER(0),
+    /** Subscriptions which were never downloaded, like the bundled ones on first run */
+    FIRST_RUN(30 * 1000),
+    /** Regular update checks */
+    BACKGROUND(2 * 60 * 1000);
+
+    /** Time after which a job of this class is treated like a new {@link #USER} job */
+    private final long agingMillis;
 
-  private Downloader(final Engine engine)
+    Priority(final long agingMillis)
+    {
+      this.agingMillis = agingMillis;
+    }
+  }
+
+  private Downloader(final Engine engine, final int maxDownloadsPerHost)
   {
     this.engine = engine;
+    this.maxDownloadsPerHost = maxDownloadsPerHost;
   }
 
   void lock()
@@ -64,27 +141,147 @@ final class Downloader
   void connectivityChanged()
   {
     this.lock();
-    if (!this.downloaderEnabled)
+    try
+    {
+      if (!this.downloaderEnabled)
+      {
+        Log.d(TAG, "Re-checking download permission");
+      }
+      this.downloaderEnabled = true;
+      this.connectivityVersion++;
+      this.connectivityChanged.signalAll();
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  /**
+   * Blocks until downloading is enabled again by {@link #connectivityChanged()}.
+   */
+  private void awaitConnectivity() throws InterruptedException
+  {
+    this.lock();
+    try
+    {
+      while (!this.downloaderEnabled)
+      {
+        this.connectivityChanged.await();
+      }
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  /**
+   * Disables downloading until connectivity changes, unless it already changed since
+   * {@code version} was read. Otherwise a change right after the failed check would be missed.
+   */
+  private void disable(final long version)
+  {
+    this.lock();
+    try
+    {
+      if (version == this.connectivityVersion)
+      {
+        this.downloaderEnabled = false;
+      }
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  private long getConnectivityVersion()
+  {
+    this.lock();
+    try
+    {
+      return this.connectivityVersion;
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  /**
+   * Downloads a filter list. The response body is parsed while it is being received and written to
+   * a new filter store in {@code downloadDir}, so the list is never held in memory as a whole.
+   * <p>
+   * If the job allows it, a {@link FilterDiff} against the stored filters is requested first. The
+   * complete list is downloaded if the server can't provide the diff or it doesn't apply.
+   */
+  static void download(final DownloadJob job, final File downloadDir) throws IOException
+  {
+    // A partially received list is resumed instead, a diff request would start it over
+    if (job.diff != null && job.partialFile == null)
     {
-      Log.d(TAG, "Re-checking download permission");
+      try
+      {
+        if (request(job, job.diff.url, true, downloadDir))
+        {
+          return;
+        }
+        Log.d(TAG, "No diff available for '" + job.id + "', response code " + job.responseCode);
+      }
+      catch (final IOException e)
+      {
+        Log.w(TAG, "Diff update of '" + job.id + "' failed: " + e.getMessage());
+      }
     }
-    this.downloaderEnabled = true;
-    this.unlock();
+    request(job, job.url, false, downloadDir);
   }
 
-  static void download(final DownloadJob job) throws IOException
+  /**
+   * If the server identifies a full list by a validator, the list is also written to a spool file
+   * while it is received. If the connection breaks, the spool file is kept with the job and the
+   * next attempt asks for the rest of the list only.
+   *
+   * @return {@code false} if a diff was requested, but the server didn't provide it
+   */
+  private static boolean request(final DownloadJob job, final URL url, final boolean diff,
+      final File downloadDir) throws IOException
   {
-    final HttpURLConnection connection = (HttpURLConnection) job.url.openConnection();
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
     connection.setRequestMethod("GET");
+    connection.setRequestProperty("Connection", "keep-alive");
     for (final Entry<String, String> e : job.headers.entrySet())
     {
       connection.addRequestProperty(e.getKey(), e.getValue());
     }
+    HttpCompression.requestCompression(connection);
+    if (!diff && job.partialFile != null)
+    {
+      connection.setRequestProperty("Range", "bytes=" + job.partialFile.length() + "-");
+      // Only resume if the list didn't change since
+      connection.setRequestProperty("If-Range", job.partialValidator);
+    }
     connection.connect();
 
     job.responseCode = connection.getResponseCode();
     job.responseHeaders.clear();
-    job.responseText = null;
+    job.responseMeta.clear();
+    job.responseFile = null;
+
+    if (diff && job.responseCode != 200 && job.responseCode != 304)
+    {
+      discardResponse(connection);
+      return false;
+    }
+    if (!diff && job.responseCode != 200 && job.responseCode != 206)
+    {
+      job.discardPartial();
+      if (job.responseCode == 416)
+      {
+        discardResponse(connection);
+        throw new IOException("Can't resume download of '" + job.id + "'");
+      }
+    }
 
     for (int i = 1;; i++)
     {
@@ -97,47 +294,678 @@ final class Downloader
       job.responseHeaders.put(key.toLowerCase(), value);
     }
 
-    final StringBuilder sb = new StringBuilder();
-    try (final BufferedReader r = new BufferedReader(new InputStreamReader(
-        connection.getInputStream(), StandardCharsets.UTF_8)))
+    final HttpCompression.ResponseStream body;
+    BodyInputStream received = null;
+    if (job.responseCode == 200 || job.responseCode == 206)
+    {
+      // Servers not supporting diffs send the complete list, which needs to be checked and
+      // spooled like any other
+      received = openBody(job, connection, downloadDir);
+      try
+      {
+        body = HttpCompression.decode(received, received.encoding, received.transfer);
+      }
+      catch (final IOException e)
+      {
+        received.close();
+        if (!received.resumable)
+        {
+          job.discardPartial();
+        }
+        throw e;
+      }
+      job.responseCode = 200;
+    }
+    else
+    {
+      body = HttpCompression.openResponse(connection);
+    }
+    try (final BufferedInputStream in = new BufferedInputStream(body))
+    {
+      if (job.responseCode == 200)
+      {
+        downloadDir.mkdirs();
+        final File file = File.createTempFile("download", ".sub", downloadDir);
+        try
+        {
+          if (SubscriptionUtils.isNotificationSubscription(job.id))
+          {
+            // The notification is JSON, it gets stored as it is
+            try (final OutputStream out = new FileOutputStream(file))
+            {
+              final byte[] buffer = new byte[8192];
+              for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+              {
+                out.write(buffer, 0, read);
+              }
+            }
+          }
+          else if (diff && FilterDiff.isDiff(peekLine(in)))
+          {
+            received.discardSpool();
+            final int numFilters = FilterDiff.apply(in, job.diff, job.responseMeta, file);
+            Log.d(TAG, "Patched '" + job.id + "' to " + numFilters + " filters");
+          }
+          else
+          {
+            final int numFilters = Subscription.parseDownload(in, job.responseMeta, file);
+            Log.d(TAG, "Received " + numFilters + " filters for '" + job.id + "'");
+          }
+        }
+        catch (final IOException e)
+        {
+          file.delete();
+          throw e;
+        }
+        job.responseFile = file;
+        Log.d(TAG, "Downloaded '" + job.id + "': " + body);
+      }
+    }
+    finally
+    {
+      if (received != null && !received.resumable)
+      {
+        // The assembled list was parsed, or it is broken and needs to be downloaded again
+        job.discardPartial();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Opens the body of a {@code 200} or {@code 206} response to a list or diff request. A
+   * {@code 206} response continues the spool file of {@code job}. A {@code 200} response replaces
+   * it, and a new spool file is only started if the response has a validator to resume from.
+   */
+  private static BodyInputStream openBody(final DownloadJob job,
+      final HttpURLConnection connection, final File downloadDir) throws IOException
+  {
+    final boolean resumed = job.responseCode == 206;
+    long expectedLength = parseLength(connection.getHeaderField("Content-Length"));
+    if (resumed)
     {
-      for (int ch = r.read(); ch != -1; ch = r.read())
+      // bytes <first>-<last>/<length>
+      final String range = connection.getHeaderField("Content-Range");
+      final int dash = range != null ? range.indexOf('-') : -1;
+      final int slash = range != null ? range.indexOf('/') : -1;
+      if (dash == -1 || slash < dash || !range.startsWith("bytes ")
+          || parseLength(range.substring(6, dash).trim()) != job.partialFile.length())
       {
-        sb.append((char) ch);
+        job.discardPartial();
+        discardResponse(connection);
+        throw new IOException("Unexpected range '" + range + "' for '" + job.id + "'");
       }
-      job.responseText = sb.toString();
+      expectedLength = parseLength(range.substring(slash + 1).trim());
+      Log.d(TAG, "Resuming '" + job.id + "' at " + job.partialFile.length() + " bytes");
+      return new BodyInputStream(job, connection, expectedLength, job.partialEncoding, true);
+    }
+
+    job.discardPartial();
+    final String validator = getValidator(connection);
+    if (validator != null)
+    {
+      downloadDir.mkdirs();
+      job.partialFile = File.createTempFile("download", ".part", downloadDir);
+      job.partialValidator = validator;
+      job.partialEncoding = HttpCompression.getEncoding(connection);
+    }
+    return new BodyInputStream(job, connection, expectedLength,
+        HttpCompression.getEncoding(connection), false);
+  }
+
+  /**
+   * @return a validator identifying the response for {@code If-Range}, or {@code null} if there is
+   *         none. Weak entity tags can't be used for ranges.
+   */
+  private static String getValidator(final HttpURLConnection connection)
+  {
+    final String etag = connection.getHeaderField("ETag");
+    if (etag != null && !etag.startsWith("W/"))
+    {
+      return etag;
     }
+    return connection.getHeaderField("Last-Modified");
+  }
+
+  /**
+   * @return the length, or -1 if it is unknown
+   */
+  private static long parseLength(final String length)
+  {
+    try
+    {
+      return length != null ? Long.parseLong(length) : -1;
+    }
+    catch (final NumberFormatException e)
+    {
+      return -1;
+    }
+  }
+
+  /**
+   * Reads and closes a response which isn't needed, so the connection can be reused. Large
+   * responses are cut off by closing the connection instead.
+   */
+  private static void discardResponse(final HttpURLConnection connection)
+  {
+    try (final InputStream in = connection.getResponseCode() >= 400
+        ? connection.getErrorStream()
+        : connection.getInputStream())
+    {
+      if (in != null && skipRemaining(in) > MAX_DISCARDED_BYTES)
+      {
+        connection.disconnect();
+      }
+    }
+    catch (final IOException e)
+    {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Reads {@code in} up to its end, or {@link #MAX_DISCARDED_BYTES} plus one buffer at most.
+   *
+   * @return the number of bytes skipped
+   */
+  private static int skipRemaining(final InputStream in) throws IOException
+  {
+    final byte[] buffer = new byte[8192];
+    int skipped = 0;
+    for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+    {
+      skipped += n;
+      if (skipped > MAX_DISCARDED_BYTES)
+      {
+        break;
+      }
+    }
+    return skipped;
+  }
+
+  /**
+   * Reads the first line of {@code in} without consuming it.
+   */
+  private static String peekLine(final BufferedInputStream in) throws IOException
+  {
+    final byte[] line = new byte[PEEK_LIMIT];
+    in.mark(PEEK_LIMIT);
+    int length = 0;
+    for (int b = in.read(); b != -1 && b != '\n' && length < PEEK_LIMIT; b = in.read())
+    {
+      line[length++] = (byte) b;
+    }
+    in.reset();
+    return new String(line, 0, length, StandardCharsets.UTF_8);
   }
 
   public void enqueueDownload(final URL url, final String id, final Map<String, String> headers,
-      final boolean allowMetered)
+      final boolean allowMetered, final FilterDiff.Request diff, final Priority priority)
   {
     this.lock();
     try
     {
+      final DownloadJob job = new DownloadJob(url, id, headers, allowMetered, diff, priority);
       if (!this.enqueuedIds.contains(id))
       {
         this.enqueuedIds.add(id);
-        this.downloadJobs.add(new DownloadJob(url, id, headers, allowMetered));
+        this.downloadJobs.add(job);
+      }
+      else
+      {
+        this.promote(job);
+      }
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  /**
+   * Runs {@code callback} once no downloads are queued or running anymore, right away if that is
+   * already the case. Jobs waiting for a retry count as queued.
+   */
+  void runWhenIdle(final Runnable callback)
+  {
+    this.lock();
+    try
+    {
+      if (!this.enqueuedIds.isEmpty())
+      {
+        this.idleCallbacks.add(callback);
+        return;
       }
     }
     finally
     {
       this.unlock();
     }
+    callback.run();
+  }
+
+  /**
+   * Removes a callback registered with {@link #runWhenIdle(Runnable)} which didn't run yet.
+   */
+  void removeIdleCallback(final Runnable callback)
+  {
+    this.lock();
+    try
+    {
+      this.idleCallbacks.remove(callback);
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  private void finished(final DownloadJob job)
+  {
+    final ArrayList<Runnable> callbacks = new ArrayList<>();
+    this.lock();
+    try
+    {
+      this.enqueuedIds.remove(job.id);
+      if (this.enqueuedIds.isEmpty())
+      {
+        callbacks.addAll(this.idleCallbacks);
+        this.idleCallbacks.clear();
+      }
+    }
+    finally
+    {
+      this.unlock();
+    }
+    for (final Runnable callback : callbacks)
+    {
+      callback.run();
+    }
+  }
+
+  /**
+   * Replaces a queued job with the same id if {@code job} would run earlier, see
+   * {@link DownloadJob#takeOver(DownloadJob)}. Jobs already running or waiting for their host are
+   * left alone.
+   */
+  private void promote(final DownloadJob job)
+  {
+    for (final Iterator<DownloadJob> it = this.downloadJobs.iterator(); it.hasNext();)
+    {
+      final DownloadJob queued = it.next();
+      if (queued.id.equals(job.id))
+      {
+        if (job.compareTo(queued) < 0 && this.downloadJobs.remove(queued))
+        {
+          Log.d(TAG, "Raising priority of '" + job.id + "' to " + job.priority);
+          job.takeOver(queued);
+          this.downloadJobs.add(job);
+        }
+        return;
+      }
+    }
+  }
+
+  private void recordWaitTime(final DownloadJob job)
+  {
+    final long waited = System.currentTimeMillis() - job.enqueuedAt;
+    final int index = job.priority.ordinal();
+    this.lock();
+    try
+    {
+      this.waitCount[index]++;
+      this.waitTotalMillis[index] += waited;
+      this.waitMaxMillis[index] = Math.max(this.waitMaxMillis[index], waited);
+    }
+    finally
+    {
+      this.unlock();
+    }
+    Log.d(TAG, "'" + job.id + "' waited " + waited + " ms with priority " + job.priority);
+  }
+
+  /**
+   * @return the average time jobs of {@code priority} waited before their download started
+   */
+  long getAverageWaitMillis(final Priority priority)
+  {
+    this.lock();
+    try
+    {
+      final int index = priority.ordinal();
+      return this.waitCount[index] == 0 ? 0 : this.waitTotalMillis[index] / this.waitCount[index];
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  /**
+   * @return the longest time a job of {@code priority} waited before its download started
+   */
+  long getMaxWaitMillis(final Priority priority)
+  {
+    this.lock();
+    try
+    {
+      return this.waitMaxMillis[priority.ordinal()];
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  private void recordChecksumFailure(final DownloadJob job,
+      final ChecksumInputStream.MismatchException e)
+  {
+    this.lock();
+    try
+    {
+      this.checksumFailures++;
+    }
+    finally
+    {
+      this.unlock();
+    }
+    Log.w(TAG, "Rejecting '" + job.id + "', keeping the current filters: " + e.getMessage());
+  }
+
+  /**
+   * @return the number of downloaded lists which were rejected because of a checksum mismatch
+   */
+  int getChecksumFailures()
+  {
+    this.lock();
+    try
+    {
+      return this.checksumFailures;
+    }
+    finally
+    {
+      this.unlock();
+    }
   }
 
   public static Downloader create(final Engine engine)
   {
-    final Downloader downloader = new Downloader(engine);
+    return create(engine, DEFAULT_WORKERS, DEFAULT_MAX_DOWNLOADS_PER_HOST);
+  }
 
-    downloader.downloaderThread = new Thread(new DownloaderHandler(downloader));
-    downloader.downloaderThread.setDaemon(true);
-    downloader.downloaderThread.start();
+  /**
+   * @param engine
+   * @param workers
+   *          number of downloads running at the same time
+   * @param maxDownloadsPerHost
+   *          number of downloads from the same host running at the same time
+   * @return a started downloader
+   */
+  static Downloader create(final Engine engine, final int workers,
+      final int maxDownloadsPerHost)
+  {
+    final Downloader downloader = new Downloader(engine, maxDownloadsPerHost);
+
+    for (int i = 0; i < workers; i++)
+    {
+      final Thread thread = new Thread(new DownloaderHandler(downloader), "Downloader-" + i);
+      thread.setDaemon(true);
+      thread.start();
+      downloader.workerThreads.add(thread);
+    }
 
     return downloader;
   }
 
+  /**
+   * Reserves a download slot for the host of {@code job}. If the host has no free slot, the job
+   * waits until {@link #releaseHost(DownloadJob)} gets called for the same host.
+   *
+   * @return {@code true} if the job may be downloaded now
+   */
+  private boolean acquireHost(final DownloadJob job)
+  {
+    final String host = job.url.getHost();
+    this.lock();
+    try
+    {
+      final Integer active = this.activeDownloads.get(host);
+      if (active != null && active >= this.maxDownloadsPerHost)
+      {
+        ArrayDeque<DownloadJob> waiting = this.waitingJobs.get(host);
+        if (waiting == null)
+        {
+          waiting = new ArrayDeque<>();
+          this.waitingJobs.put(host, waiting);
+        }
+        waiting.add(job);
+        return false;
+      }
+      this.activeDownloads.put(host, active != null ? active + 1 : 1);
+      return true;
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  /**
+   * @return the time in milliseconds requests to the host of {@code job} are still blocked for
+   */
+  private long getBlockedMillis(final DownloadJob job)
+  {
+    this.lock();
+    try
+    {
+      return this.circuitBreaker.getBlockedMillis(job.url.getHost(), System.currentTimeMillis());
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  private void recordHostResult(final DownloadJob job, final boolean success)
+  {
+    final String host = job.url.getHost();
+    this.lock();
+    try
+    {
+      if (success)
+      {
+        this.circuitBreaker.recordSuccess(host);
+      }
+      else if (this.circuitBreaker.recordFailure(host, System.currentTimeMillis()))
+      {
+        Log.w(TAG, "Blocking " + host + " for " + this.circuitBreaker.getBlockedMillis(host,
+            System.currentTimeMillis()) + " ms after repeated failures");
+      }
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  /**
+   * Puts {@code job} back into the queue after {@code delayMillis}.
+   */
+  private void schedule(final DownloadJob job, final long delayMillis)
+  {
+    this.retryScheduler.schedule(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        Downloader.this.downloadJobs.add(job);
+      }
+    }, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void releaseHost(final DownloadJob job)
+  {
+    final String host = job.url.getHost();
+    this.lock();
+    try
+    {
+      final int active = this.activeDownloads.get(host) - 1;
+      if (active > 0)
+      {
+        this.activeDownloads.put(host, active);
+      }
+      else
+      {
+        this.activeDownloads.remove(host);
+      }
+      final ArrayDeque<DownloadJob> waiting = this.waitingJobs.get(host);
+      if (waiting != null)
+      {
+        this.downloadJobs.add(waiting.poll());
+        if (waiting.isEmpty())
+        {
+          this.waitingJobs.remove(host);
+        }
+      }
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  /**
+   * Reads the body of a list or diff response and checks that it is complete. If {@code job} has a
+   * spool file, the body is appended to it while it is read, and read after the part of the list
+   * already in the spool file when resuming. Bytes and time are metered on the network stream.
+   */
+  private static final class BodyInputStream extends InputStream
+  {
+    private final DownloadJob job;
+    private final long expectedLength;
+    private final String encoding;
+    private final HttpCompression.MeteredInputStream transfer;
+    private OutputStream spool;
+    private InputStream spooled;
+    private long length;
+    // Whether the spool file is complete up to an interrupted transfer and can be resumed from
+    private boolean resumable = false;
+
+    BodyInputStream(final DownloadJob job, final HttpURLConnection connection,
+        final long expectedLength, final String encoding, final boolean resumed)
+        throws IOException
+    {
+      this.job = job;
+      this.expectedLength = expectedLength;
+      this.encoding = encoding;
+      this.length = resumed ? job.partialFile.length() : 0;
+      this.transfer = new HttpCompression.MeteredInputStream(connection.getInputStream());
+      try
+      {
+        this.spooled = resumed ? new FileInputStream(job.partialFile) : null;
+        this.spool = job.partialFile != null
+            ? new FileOutputStream(job.partialFile, resumed)
+            : null;
+      }
+      catch (final IOException e)
+      {
+        this.close();
+        throw e;
+      }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      final byte[] buffer = new byte[1];
+      return this.read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException
+    {
+      if (this.spooled != null)
+      {
+        final int read = this.spooled.read(buffer, offset, length);
+        if (read != -1)
+        {
+          return read;
+        }
+        // The spool file only grows once everything in it was read
+        this.spooled.close();
+        this.spooled = null;
+      }
+
+      final int read;
+      try
+      {
+        read = this.transfer.read(buffer, offset, length);
+      }
+      catch (final IOException e)
+      {
+        this.resumable = this.spool != null;
+        throw e;
+      }
+      if (read > 0)
+      {
+        if (this.spool != null)
+        {
+          this.spool.write(buffer, offset, read);
+        }
+        this.length += read;
+      }
+      else if (read == -1 && this.expectedLength != -1 && this.length != this.expectedLength)
+      {
+        this.resumable = this.spool != null && this.length < this.expectedLength;
+        throw new IOException("Received " + this.length + " of " + this.expectedLength
+            + " bytes for '" + this.job.id + "'");
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException
+    {
+      // Skipped bytes need to be spooled as well
+      final byte[] buffer = new byte[(int) Math.max(0, Math.min(n, 8192))];
+      return Math.max(this.read(buffer, 0, buffer.length), 0);
+    }
+
+    /**
+     * Stops writing the body to the spool file and deletes it. Diffs aren't resumed, only
+     * complete lists are.
+     */
+    void discardSpool() throws IOException
+    {
+      if (this.spool != null)
+      {
+        this.spool.close();
+        this.spool = null;
+      }
+      this.job.discardPartial();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try
+      {
+        if (this.spooled != null)
+        {
+          this.spooled.close();
+        }
+        if (this.spool != null)
+        {
+          this.spool.close();
+        }
+      }
+      finally
+      {
+        this.transfer.close();
+      }
+    }
+  }
+
   private static class DownloaderHandler implements Runnable
   {
     private static final String TAG = DownloaderHandler.class.getSimpleName();
@@ -153,54 +981,72 @@ final class Downloader
     public void run()
     {
       Log.d(TAG, "Handler thread started");
-      final LinkedBlockingQueue<DownloadJob> reQueue = new LinkedBlockingQueue<>();
       boolean interrupted = false;
       while (!interrupted)
       {
         DownloadJob job = null;
         try
         {
-          if (!this.downloader.downloaderEnabled)
-          {
-            Thread.sleep(30000);
-            continue;
-          }
+          this.downloader.awaitConnectivity();
           job = this.downloader.downloadJobs.poll(5 * 60, TimeUnit.SECONDS);
           if (job != null)
           {
+            final long connectivityVersion = this.downloader.getConnectivityVersion();
             if (this.downloader.engine.canUseInternet(job.allowMetered))
             {
+              final long blockedMillis = this.downloader.getBlockedMillis(job);
+              if (blockedMillis > 0)
+              {
+                Log.d(TAG, "Host of '" + job.id + "' blocked, delaying by " + blockedMillis
+                    + " ms");
+                this.downloader.schedule(job, blockedMillis);
+                continue;
+              }
+              if (!this.downloader.acquireHost(job))
+              {
+                Log.d(TAG, "Host of '" + job.id + "' busy, waiting");
+                continue;
+              }
+              if (job.retryCount == 0)
+              {
+                this.downloader.recordWaitTime(job);
+              }
               Log.d(TAG, "Downloading '" + job.id + "' using " + job.url);
-              download(job);
-              Log.d(TAG, "Downloading '" + job.id + "' finished with response code "
-                  + job.responseCode);
-              this.downloader.lock();
               try
               {
-                this.downloader.enqueuedIds.remove(job.id);
+                download(job, this.downloader.engine.getDownloadDir());
+                this.downloader.recordHostResult(job, job.responseCode < 500);
               }
-              finally
+              catch (final ChecksumInputStream.MismatchException e)
               {
-                this.downloader.unlock();
+                // Nothing went wrong with the transfer, downloading the list again won't help
+                this.downloader.recordChecksumFailure(job, e);
+                job.discardPartial();
+                this.downloader.engine.downloadFinished(job.id, -1, null, null, null);
+                this.downloader.finished(job);
+                continue;
               }
-
-              this.downloader.engine.downloadFinished(job.id, job.responseCode, job.responseText,
-                  job.responseHeaders);
-
-              // Check for retries
-              if (!reQueue.isEmpty())
+              catch (final IOException e)
+              {
+                this.downloader.recordHostResult(job, false);
+                throw e;
+              }
+              finally
               {
-                this.downloader.downloadJobs.add(reQueue.poll());
+                this.downloader.releaseHost(job);
               }
+              Log.d(TAG, "Downloading '" + job.id + "' finished with response code "
+                  + job.responseCode);
+              this.downloader.engine.downloadFinished(job.id, job.responseCode, job.responseFile,
+                  job.responseMeta, job.responseHeaders);
+              this.downloader.finished(job);
             }
             else
             {
               // we just keep jobs in queue
               Log.d(TAG, "Updates disabled, re-queuing and disabling downloader");
               this.downloader.downloadJobs.add(job);
-              this.downloader.lock();
-              this.downloader.downloaderEnabled = false;
-              this.downloader.unlock();
+              this.downloader.disable(connectivityVersion);
             }
           }
         }
@@ -216,20 +1062,16 @@ final class Downloader
           {
             if (job.retryCount++ < MAX_RETRIES)
             {
-              reQueue.add(job);
+              final long delay = Backoff.delay(job.retryCount - 1, RETRY_BASE_DELAY_MILLIS,
+                  RETRY_MAX_DELAY_MILLIS);
+              Log.d(TAG, "Retrying '" + job.id + "' in " + delay + " ms");
+              this.downloader.schedule(job, delay);
             }
             else
             {
-              this.downloader.lock();
-              try
-              {
-                this.downloader.enqueuedIds.remove(job.id);
-              }
-              finally
-              {
-                this.downloader.unlock();
-              }
-              this.downloader.engine.downloadFinished(job.id, -1, null, null);
+              job.discardPartial();
+              this.downloader.engine.downloadFinished(job.id, -1, null, null, null);
+              this.downloader.finished(job);
             }
           }
         }
@@ -238,27 +1080,86 @@ final class Downloader
     }
   }
 
-  private static class DownloadJob
+  static class DownloadJob implements Comparable<DownloadJob>
   {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
     private final URL url;
     private final String id;
     private final boolean allowMetered;
+    private final FilterDiff.Request diff;
     private final HashMap<String, String> headers = new HashMap<>();
+    private final Priority priority;
+    private final long enqueuedAt = System.currentTimeMillis();
+    // All jobs age at the same rate, so ordering by the time a job reaches the top priority
+    // class is the same as comparing aged priorities
+    private final long deadline;
+    private final long sequence = SEQUENCE.getAndIncrement();
     private int retryCount = 0;
+    // Spooled body of an interrupted download, along with what is needed to resume it
+    private File partialFile = null;
+    private String partialValidator = null;
+    private String partialEncoding = null;
 
-    private int responseCode = 0;
-    private final HashMap<String, String> responseHeaders = new HashMap<>();
-    private String responseText = null;
+    int responseCode = 0;
+    final HashMap<String, String> responseHeaders = new HashMap<>();
+    final HashMap<String, String> responseMeta = new HashMap<>();
+    File responseFile = null;
 
-    public DownloadJob(final URL url, final String id, final Map<String, String> headers, boolean allowMetered)
+    DownloadJob(final URL url, final String id, final Map<String, String> headers,
+        final boolean allowMetered, final FilterDiff.Request diff, final Priority priority)
     {
       this.url = url;
       this.id = id;
       this.allowMetered = allowMetered;
+      this.diff = diff;
+      this.priority = priority;
+      this.deadline = this.enqueuedAt + priority.agingMillis;
       if (headers != null)
       {
         this.headers.putAll(headers);
       }
     }
+
+    /**
+     * Continues where {@code replaced} left off, so a job that gets promoted keeps its retry count
+     * and can still resume an interrupted download.
+     */
+    void takeOver(final DownloadJob replaced)
+    {
+      this.retryCount = replaced.retryCount;
+      if (this.diff == null)
+      {
+        this.partialFile = replaced.partialFile;
+        this.partialValidator = replaced.partialValidator;
+        this.partialEncoding = replaced.partialEncoding;
+      }
+      else
+      {
+        // Diffs are never resumed, the spooled body would only be left behind
+        replaced.discardPartial();
+      }
+    }
+
+    private void discardPartial()
+    {
+      if (this.partialFile != null && this.partialFile.exists() && !this.partialFile.delete())
+      {
+        Log.w(TAG, "Failed to delete " + this.partialFile);
+      }
+      this.partialFile = null;
+      this.partialValidator = null;
+      this.partialEncoding = null;
+    }
+
+    @Override
+    public int compareTo(final DownloadJob other)
+    {
+      if (this.deadline != other.deadline)
+      {
+        return this.deadline < other.deadline ? -1 : 1;
+      }
+      return this.sequence < other.sequence ? -1 : this.sequence > other.sequence ? 1 : 0;
+    }
   }
 }
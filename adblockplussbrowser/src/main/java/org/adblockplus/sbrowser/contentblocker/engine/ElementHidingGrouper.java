@@ -0,0 +1,211 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Shrinks the element hiding filters of the merged filter list. Domain specific {@code ##} filters
+ * with the same selector are merged into one filter, {@code a.com##.ad} and {@code b.com##.ad}
+ * become {@code a.com,b.com##.ad}, and domain specific filters are dropped if a generic filter
+ * with the same selector exists.
+ * <p>
+ * To keep the semantics intact, filters with excluded ({@code ~}) domains are never merged,
+ * selectors with an {@code #@#} exception are written as they are, and nothing is dropped in
+ * favour of a generic filter if any {@code $generichide} exception exists.
+ */
+final class ElementHidingGrouper
+{
+  private static final String TAG = ElementHidingGrouper.class.getSimpleName();
+
+  private static final String OPTION_GENERICHIDE = "generichide";
+
+  private final LinkedHashMap<String, Group> groups = new LinkedHashMap<>();
+  private final HashSet<String> genericSelectors = new HashSet<>();
+  private final HashSet<String> exceptionSelectors = new HashSet<>();
+  private boolean hasGenericHideException = false;
+
+  private static final class Group
+  {
+    final List<String> filters = new ArrayList<>();
+    final TreeSet<String> domains = new TreeSet<>();
+  }
+
+  /**
+   * @param filter
+   * @return the index of the first {@code #} of the separator between the domains and the selector
+   *         of an element hiding filter, or {@code -1} if {@code filter} is no element hiding filter
+   */
+  static int findSeparator(final String filter)
+  {
+    // Mirrors the way Adblock Plus tells element hiding filters apart: a domain part without any
+    // of the characters /*|@"!, followed by ##, #@#, #?# or #$#
+    for (int i = 0; i < filter.length(); i++)
+    {
+      switch (filter.charAt(i))
+      {
+        case '/':
+        case '*':
+        case '|':
+        case '@':
+        case '"':
+        case '!':
+          return -1;
+        case '#':
+          if (i + 1 < filter.length() && filter.charAt(i + 1) == '#')
+          {
+            return i;
+          }
+          if (i + 2 < filter.length() && "@?$".indexOf(filter.charAt(i + 1)) != -1
+              && filter.charAt(i + 2) == '#')
+          {
+            return i;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Passes a filter of the merged filter list to the grouper.
+   *
+   * @param filter
+   * @return {@code true} if the grouper took the filter, it gets written by {@link #write(Writer)}.
+   *         Otherwise the caller needs to write it.
+   */
+  public boolean add(final String filter)
+  {
+    if (filter.startsWith("@@"))
+    {
+      final int optionsStart = filter.lastIndexOf('$');
+      if (optionsStart != -1)
+      {
+        for (final String option : filter.substring(optionsStart + 1).split(","))
+        {
+          if (option.toLowerCase(Locale.ENGLISH).equals(OPTION_GENERICHIDE))
+          {
+            this.hasGenericHideException = true;
+          }
+        }
+      }
+      return false;
+    }
+
+    final int separator = findSeparator(filter);
+    if (separator == -1)
+    {
+      return false;
+    }
+    final char type = filter.charAt(separator + 1);
+    if (type == '@')
+    {
+      this.exceptionSelectors.add(filter.substring(separator + 3));
+      return false;
+    }
+    if (type != '#')
+    {
+      return false;
+    }
+
+    final String selector = filter.substring(separator + 2);
+    if (separator == 0)
+    {
+      this.genericSelectors.add(selector);
+      return false;
+    }
+    final String[] domains = filter.substring(0, separator).split(",", -1);
+    for (final String domain : domains)
+    {
+      if (domain.isEmpty() || domain.indexOf('~') != -1)
+      {
+        return false;
+      }
+    }
+
+    Group group = this.groups.get(selector);
+    if (group == null)
+    {
+      group = new Group();
+      this.groups.put(selector, group);
+    }
+    group.filters.add(filter);
+    for (final String domain : domains)
+    {
+      group.domains.add(domain.toLowerCase(Locale.ENGLISH));
+    }
+    return true;
+  }
+
+  /**
+   * Writes all filters taken by {@link #add(String)}, one per line.
+   *
+   * @param writer
+   * @return the number of filters written
+   * @throws IOException
+   */
+  public int write(final Writer writer) throws IOException
+  {
+    int taken = 0;
+    int written = 0;
+    int dropped = 0;
+    for (final Map.Entry<String, Group> entry : this.groups.entrySet())
+    {
+      final String selector = entry.getKey();
+      final Group group = entry.getValue();
+      taken += group.filters.size();
+      if (this.exceptionSelectors.contains(selector))
+      {
+        for (final String filter : group.filters)
+        {
+          writer.write(filter);
+          writer.write('\n');
+        }
+        written += group.filters.size();
+      }
+      else if (!this.hasGenericHideException && this.genericSelectors.contains(selector))
+      {
+        dropped += group.filters.size();
+      }
+      else
+      {
+        writer.write(TextUtils.join(",", group.domains));
+        writer.write("##");
+        writer.write(selector);
+        writer.write('\n');
+        written++;
+      }
+    }
+    Log.d(TAG, "Grouped " + taken + " element hiding filters into " + written + " filters, "
+        + dropped + " were covered by generic filters");
+    return written;
+  }
+}
@@ -26,8 +26,6 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
@@ -37,7 +35,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -47,6 +44,7 @@ import org.adblockplus.sbrowser.contentblocker.util.ConnectivityUtils;
 import org.adblockplus.sbrowser.contentblocker.util.SharedPrefsUtils;
 import org.adblockplus.sbrowser.contentblocker.util.SubscriptionUtils;
 
+import android.app.ActivityManager;
 import android.app.job.JobInfo;
 import android.app.job.JobScheduler;
 import android.content.ComponentName;
@@ -55,7 +53,13 @@ import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.PersistableBundle;
@@ -77,14 +81,30 @@ public final class Engine
 
   public static final String SUBSCRIPTIONS_EXCEPTIONSURL = "subscriptions_exceptionsurl";
 
+  // Keys of the bundle returned by getSnapshotInfo()
+  public static final String SNAPSHOT_VERSION = "version";
+  // Fingerprint of the filters the file was written from, not a hash of its content
+  public static final String SNAPSHOT_HASH = "hash";
+  public static final String SNAPSHOT_FILTER_COUNT = "filterCount";
+  public static final String SNAPSHOT_SIZE = "size";
+
   // The value below specifies an interval of [x, 2*x[, where x =
   // INITIAL_UPDATE_CHECK_DELAY
   private static final long INITIAL_UPDATE_CHECK_DELAY = 5 * DateUtils.SECOND_IN_MILLIS;
   private static final long UPDATE_CHECK_INTERVAL = 30 * DateUtils.MINUTE_IN_MILLIS;
+  private static final long SCHEDULED_UPDATE_CHECK_INTERVAL = DateUtils.HOUR_IN_MILLIS;
+  private static final String JOB_EXTRA_WIFI_ONLY = "wifiOnly";
+  // Set on the notification download jobs of older versions
+  private static final String LEGACY_JOB_EXTRA_URL = "_extra_url";
   private static final long BROADCAST_COMBINATION_DELAY = 2500;
+  private static final long STALE_DOWNLOAD_AGE = DateUtils.HOUR_IN_MILLIS;
+
+  static final int JOB_ID_UPDATE_CHECK = 1;
 
   private static final int NO_FLAG = 0;
   private static final int OLDEST_SAMSUNG_INTERNET_5_VERSIONCODE = 500000000;
+  private static final int NETWORK_VALIDATED = 1;
+  private static final int NETWORK_NOT_METERED = 2;
 
   private final ReentrantLock accessLock = new ReentrantLock();
   private DefaultSubscriptions defaultSubscriptions;
@@ -99,7 +119,8 @@ public final class Engine
   private ComponentName componentName;
   private boolean wasFirstRun = false;
   private long nextUpdateBroadcast = Long.MAX_VALUE;
-  private int jobId = 0;
+  private boolean scheduledUpdateChecks = false;
+  private CompiledWhitelist whitelist = null;
 
   private Engine(final Context context)
   {
@@ -187,7 +208,12 @@ public final class Engine
 
   private void writeFileAndSendUpdateBroadcast()
   {
-    createAndWriteFile();
+    if (!createAndWriteFile())
+    {
+      return;
+    }
+    SharedPrefsUtils.putInt(this.context, R.string.key_filter_update_broadcasts,
+        SharedPrefsUtils.getInt(this.context, R.string.key_filter_update_broadcasts, 0) + 1);
 
     runOnUiThread(new Runnable()
     {
@@ -213,7 +239,7 @@ public final class Engine
   {
     try
     {
-      subscriptions.checkForUpdates(true, allowMetered);
+      subscriptions.checkForUpdates(true, allowMetered, Downloader.Priority.USER);
       Toast.makeText(context, context.getText(R.string.updating_subscriptions), Toast.LENGTH_LONG).show();
     }
     catch (IOException e)
@@ -257,26 +283,72 @@ public final class Engine
 
   public void removeSubscriptionById(final String subscriptionId)
   {
-    subscriptions.remove(subscriptionId);
+    this.lock();
+    try
+    {
+      if (subscriptions.remove(subscriptionId))
+      {
+        this.requestUpdateBroadcast();
+      }
+    }
+    finally
+    {
+      this.unlock();
+    }
+  }
+
+  void downloadFinished(final String id, final int responseCode, final File response,
+      final Map<String, String> responseMeta, final Map<String, String> headers)
+  {
+    this.engineEvents.add(new DownloadFinishedEvent(id, responseCode, response, responseMeta,
+        headers));
   }
 
-  void downloadFinished(final String id, final int responseCode, final String response,
-      final Map<String, String> headers)
+  File getDownloadDir()
   {
-    this.engineEvents.add(new DownloadFinishedEvent(id, responseCode, response, headers));
+    return getDownloadDir(this.context);
   }
 
-  private void createAndWriteFile()
+  /**
+   * Writes the merged filters and the whitelisted websites to a new filter file, unless the file
+   * which is currently served has the same content.
+   *
+   * @return {@code false} if writing the file was skipped, as the browser already has the filters,
+   *         or if it failed
+   */
+  private boolean createAndWriteFile()
   {
     this.lock();
     try
     {
-      Log.d(TAG, "Writing filters...");
-      final File filterFile = this.subscriptions.createAndWriteFile();
-      writeWhitelistedWebsites(this.context, filterFile);
+      final List<String> whitelist = this.getWhitelistFilters();
+      final String fingerprint = this.subscriptions.computeOutputFingerprint(whitelist);
+      final File cachedFilterFile = getCachedFilterFile(this.context);
+      if (cachedFilterFile != null && cachedFilterFile.exists() && fingerprint.equals(
+          SharedPrefsUtils.getString(this.context, R.string.key_cached_filter_fingerprint, null)))
+      {
+        final int avoided = SharedPrefsUtils.getInt(this.context,
+            R.string.key_avoided_filter_update_broadcasts, 0) + 1;
+        SharedPrefsUtils.putInt(this.context, R.string.key_avoided_filter_update_broadcasts,
+            avoided);
+        Log.d(TAG, "Filters unchanged, skipping update (" + avoided + " skipped so far)");
+        return false;
+      }
 
-      SharedPrefsUtils.putString(
-          this.context, R.string.key_cached_filter_path, filterFile.getAbsolutePath());
+      Log.d(TAG, "Writing filters...");
+      final File filterFile = this.subscriptions.createAndWriteFile(whitelist);
+
+      // Written together, so getSnapshotInfo() never mixes up two files
+      final long version =
+          SharedPrefsUtils.getLong(this.context, R.string.key_cached_filter_version, 0) + 1;
+      SharedPrefsUtils.edit(this.context)
+          .putString(this.context.getString(R.string.key_cached_filter_path),
+              filterFile.getAbsolutePath())
+          .putString(this.context.getString(R.string.key_cached_filter_fingerprint), fingerprint)
+          .putInt(this.context.getString(R.string.key_cached_filter_count),
+              this.subscriptions.getWrittenFilterCount())
+          .putLong(this.context.getString(R.string.key_cached_filter_version), version)
+          .apply();
 
       Log.d(TAG, "Cleaning up cache...");
       final File dummyFile = getDummyFilterFile(this.context);
@@ -296,11 +368,14 @@ public final class Engine
     catch (IOException e)
     {
       Log.e(TAG, "Failed to write filters", e);
+      // The browser keeps the filters it has, there is nothing new to announce
+      return false;
     }
     finally
     {
       this.unlock();
     }
+    return true;
   }
 
   public static void runOnUiThread(final Runnable runnable)
@@ -407,6 +482,11 @@ public final class Engine
 
     engine.subscriptions = Subscriptions.initialize(engine, getSubscriptionsDir(context),
         getFilterCacheDir(context));
+    final boolean lowRam = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+        .isLowRamDevice();
+    engine.subscriptions.setPassthroughMerge(lowRam);
+    Log.d(TAG, "Low RAM device: " + lowRam);
+    cleanDownloadDir(context);
 
     try (final InputStream prefsJson = context.getResources().openRawResource(R.raw.prefs))
     {
@@ -474,6 +554,8 @@ public final class Engine
     engine.handlerThread.start();
 
     engine.downloader = Downloader.create(engine);
+    engine.registerNetworkCallback();
+    engine.scheduledUpdateChecks = engine.scheduleUpdateChecks();
 
     final File cachedFilterFile = getCachedFilterFile(context);
     if (cachedFilterFile == null || !cachedFilterFile.exists())
@@ -484,6 +566,29 @@ public final class Engine
     return engine;
   }
 
+  /**
+   * Removes responses left over from downloads which weren't applied before the process died.
+   */
+  private static void cleanDownloadDir(final Context context)
+  {
+    final File downloadDir = getDownloadDir(context);
+    downloadDir.mkdirs();
+    final File[] files = downloadDir.listFiles();
+    if (files != null)
+    {
+      final long now = System.currentTimeMillis();
+      for (final File file : files)
+      {
+        // Younger files might belong to a download that is still running
+        if (now - file.lastModified() > STALE_DOWNLOAD_AGE)
+        {
+          Log.d(TAG, "Deleting stale download: " + file);
+          file.delete();
+        }
+      }
+    }
+  }
+
   public static String readFileAsString(InputStream instream) throws IOException
   {
     final StringBuilder sb = new StringBuilder();
@@ -536,37 +641,59 @@ public final class Engine
     return dummyFilterFile;
   }
 
+  /**
+   * Describes the filter file which {@link #getOrCreateCachedFilterFile(Context)} returns. The
+   * version increases with every filter file written and survives restarts, so consumers can skip
+   * reading a snapshot they already know. The hash is the fingerprint of the merged filters and
+   * whitelisted websites the file was written from, files written from the same input have the
+   * same hash. The dummy filter file has version 0 and no hash.
+   *
+   * @param context
+   * @return a bundle with the {@code SNAPSHOT_*} keys
+   * @throws IOException
+   */
+  public static Bundle getSnapshotInfo(final Context context) throws IOException
+  {
+    final File cachedFilterFile = getCachedFilterFile(context);
+    final File filterFile = getOrCreateCachedFilterFile(context);
+    final Bundle info = new Bundle();
+    if (filterFile.equals(cachedFilterFile))
+    {
+      info.putLong(SNAPSHOT_VERSION,
+          SharedPrefsUtils.getLong(context, R.string.key_cached_filter_version, 0));
+      info.putString(SNAPSHOT_HASH,
+          SharedPrefsUtils.getString(context, R.string.key_cached_filter_fingerprint, null));
+      info.putInt(SNAPSHOT_FILTER_COUNT,
+          SharedPrefsUtils.getInt(context, R.string.key_cached_filter_count, 0));
+    }
+    else
+    {
+      info.putLong(SNAPSHOT_VERSION, 0);
+      info.putInt(SNAPSHOT_FILTER_COUNT, 0);
+    }
+    info.putLong(SNAPSHOT_SIZE, filterFile.length());
+    return info;
+  }
+
   public static void writeFilterHeaders(Writer writer) throws IOException
   {
     writer.write("[Adblock Plus 2.0]\n");
     writer.write("! This file was automatically created.\n");
   }
 
-  private static void writeWhitelistedWebsites(Context context, File filterFile) throws IOException
+  /**
+   * @return the whitelist filters, compiled again only if the whitelisted websites changed
+   */
+  private List<String> getWhitelistFilters()
   {
-    Log.d(TAG, "Writing whitelisted websites...");
-    final Set<String> whitelistedWebsites = new TreeSet<>();
-    whitelistedWebsites.addAll(SharedPrefsUtils.getStringSet(
-        context, R.string.key_whitelisted_websites, Collections.<String>emptySet()));
-
-    try (final BufferedWriter w = new BufferedWriter( new OutputStreamWriter(
-        new FileOutputStream(filterFile, true), StandardCharsets.UTF_8)))
+    final Set<String> websites = SharedPrefsUtils.getStringSet(
+        this.context, R.string.key_whitelisted_websites, Collections.<String>emptySet());
+    if (this.whitelist == null || !this.whitelist.isCompiledFrom(websites))
     {
-      for (final String url : whitelistedWebsites)
-      {
-        try
-        {
-          final URI uri = new URI(url);
-          final String host = uri.getHost() != null ? uri.getHost() : uri.getPath();
-          w.write("@@||" + host + "^$document");
-          w.write('\n');
-        }
-        catch (URISyntaxException e)
-        {
-          Log.w(TAG, "Failed to parse whitelisted website: " + url);
-        }
-      }
+      this.whitelist = CompiledWhitelist.compile(websites,
+          this.whitelist != null ? this.whitelist.getVersion() + 1 : 1);
     }
+    return this.whitelist.getFilters();
   }
 
   private static File getCachedFilterFile(Context context)
@@ -592,6 +719,11 @@ public final class Engine
     return new File(context.getCacheDir(), "subscriptions");
   }
 
+  static File getDownloadDir(Context context)
+  {
+    return new File(context.getCacheDir(), "downloads");
+  }
+
   private static File getSubscriptionsDir(Context context)
   {
     return new File(context.getFilesDir(), "subscriptions");
@@ -655,6 +787,16 @@ public final class Engine
     return new URL(sb.toString());
   }
 
+  /**
+   * @return the download URL of {@code sub}, asking for a {@link FilterDiff} against
+   *         {@code version}
+   */
+  URL createDiffURL(final Subscription sub, final String version) throws IOException
+  {
+    return new URL(this.createDownloadURL(sub) + "&diff="
+        + URLEncoder.encode(version, StandardCharsets.UTF_8.name()));
+  }
+
   public boolean isAcceptableAdsUrl(final SubscriptionInfo subscriptionInfo)
   {
     return getPrefsDefault(SUBSCRIPTIONS_EXCEPTIONSURL).equals(subscriptionInfo.getUrl());
@@ -702,7 +844,20 @@ public final class Engine
                   Log.d(TAG, "Download finished for '" + dfe.id + "' with response code "
                       + dfe.responseCode);
                   this.engine.subscriptions.updateSubscription(dfe.id, dfe.responseCode,
-                        dfe.response, dfe.headers);
+                        dfe.response, dfe.responseMeta, dfe.headers);
+                  break;
+                }
+                case SCHEDULED_UPDATE_CHECK:
+                {
+                  Log.d(TAG, "Running scheduled update check");
+                  this.engine.subscriptions.checkForUpdates(false, false,
+                      Downloader.Priority.BACKGROUND);
+                  this.engine.downloader.runWhenIdle(((UpdateCheckEvent) event).finished);
+                  break;
+                }
+                case CANCEL_UPDATE_CHECK:
+                {
+                  this.engine.downloader.removeIdleCallback(((UpdateCheckEvent) event).finished);
                   break;
                 }
                 default:
@@ -714,9 +869,14 @@ public final class Engine
             final long currentTime = System.currentTimeMillis();
             if (currentTime > nextUpdateCheck)
             {
-              nextUpdateCheck = currentTime + UPDATE_CHECK_INTERVAL;
-
-              this.engine.subscriptions.checkForUpdates(false, false);
+              // With scheduled update checks, only check once after start, e.g. for lists which
+              // weren't downloaded yet
+              nextUpdateCheck = this.engine.scheduledUpdateChecks
+                  ? Long.MAX_VALUE
+                  : currentTime + UPDATE_CHECK_INTERVAL;
+
+              this.engine.subscriptions.checkForUpdates(false, false,
+                  Downloader.Priority.BACKGROUND);
             }
 
             if (currentTime > this.engine.nextUpdateBroadcast)
@@ -725,6 +885,9 @@ public final class Engine
               Log.d(TAG, "Sending update broadcast");
               this.engine.writeFileAndSendUpdateBroadcast();
             }
+
+            // Meta data changed by this cycle is written at once
+            this.engine.subscriptions.commitMetaData();
           }
           finally
           {
@@ -751,7 +914,9 @@ public final class Engine
     {
       CHANGE_ENABLED_STATE,
       FORCE_DOWNLOAD,
-      DOWNLOAD_FINISHED
+      DOWNLOAD_FINISHED,
+      SCHEDULED_UPDATE_CHECK,
+      CANCEL_UPDATE_CHECK
     }
 
     private final EngineEventType type;
@@ -780,22 +945,39 @@ public final class Engine
     }
   }
 
+  private static class UpdateCheckEvent extends EngineEvent
+  {
+    private final Runnable finished;
+
+    public UpdateCheckEvent(final EngineEventType type, final Runnable finished)
+    {
+      super(type);
+      this.finished = finished;
+    }
+  }
+
   private static class DownloadFinishedEvent extends EngineEvent
   {
     private final String id;
     private final int responseCode;
-    private final String response;
+    private final File response;
+    private final HashMap<String, String> responseMeta = new HashMap<>();
     private final HashMap<String, String> headers = new HashMap<>();
 
     public DownloadFinishedEvent(final String id,
         final int responseCode,
-        final String response,
+        final File response,
+        final Map<String, String> responseMeta,
         final Map<String, String> headers)
     {
       super(EngineEvent.EngineEventType.DOWNLOAD_FINISHED);
       this.id = id;
       this.responseCode = responseCode;
       this.response = response;
+      if (responseMeta != null)
+      {
+        this.responseMeta.putAll(responseMeta);
+      }
       if (headers != null)
       {
         this.headers.putAll(headers);
@@ -803,23 +985,28 @@ public final class Engine
     }
   }
 
+  /**
+   * Subscriptions which were never downloaded get at least {@link Downloader.Priority#FIRST_RUN},
+   * so the bundled lists get replaced quickly.
+   */
   public void enqueueDownload(final Subscription sub, final boolean forced,
-      final boolean allowMetered) throws IOException
+      final boolean allowMetered, final Downloader.Priority priority) throws IOException
   {
 
     if (sub.getURL() != null && sub.shouldUpdate(forced))
     {
-      // For now we want to use JobScheduler only for the Notification download.
-      // See https://issues.adblockplus.org/ticket/6238.
-      if (SubscriptionUtils.isNotificationSubscription(sub.getId()))
-      {
-        scheduleJob(this.createDownloadURL(sub), sub.getId(), allowMetered);
-        return;
-      }
-
       final HashMap<String, String> headers = new HashMap<>();
+      FilterDiff.Request diff = null;
       if (sub.isMetaDataValid() && sub.isFiltersValid())
       {
+        final String version = sub.getMeta(Subscription.KEY_VERSION);
+        // The notification isn't a filter list, there are no diffs for it
+        if (!TextUtils.isEmpty(version)
+            && !SubscriptionUtils.isNotificationSubscription(sub.getId()))
+        {
+          diff = new FilterDiff.Request(this.createDiffURL(sub, version),
+              this.subscriptions.getFiltersFile(sub), version);
+        }
         final String lastModified = sub.getMeta(Subscription.KEY_HTTP_LAST_MODIFIED);
         if (!TextUtils.isEmpty(lastModified))
         {
@@ -831,26 +1018,98 @@ public final class Engine
           headers.put("If-None-Match", etag);
         }
       }
-      this.downloader.enqueueDownload(this.createDownloadURL(sub), sub.getId(), headers, allowMetered);
+      this.downloader.enqueueDownload(this.createDownloadURL(sub), sub.getId(), headers,
+          allowMetered, diff,
+          priority == Downloader.Priority.BACKGROUND && sub.getLastUpdateTimestamp() == 0
+              ? Downloader.Priority.FIRST_RUN
+              : priority);
     }
   }
 
-  private void scheduleJob(final URL url, final String id, final boolean allowMetered)
+  /**
+   * Schedules a periodic job checking the subscriptions for updates, replacing the in-process
+   * update timer. The job is persisted across reboots and only runs on a network allowed by the
+   * automatic updates setting, while the battery isn't low.
+   *
+   * @return {@code false} if the job couldn't be scheduled
+   */
+  private boolean scheduleUpdateChecks()
   {
-    final JobInfo.Builder builder = new JobInfo.Builder(jobId++, componentName);
-    builder.setRequiredNetworkType(allowMetered
-            ? JobInfo.NETWORK_TYPE_UNMETERED
-            : JobInfo.NETWORK_TYPE_ANY);
+    final JobScheduler scheduler = (JobScheduler) this.context
+        .getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    if (scheduler == null)
+    {
+      return false;
+    }
+    final boolean wifiOnly = "1".equals(SharedPrefsUtils.getString(this.context,
+        R.string.key_automatic_updates, "1"));
+    boolean scheduled = false;
+    for (final JobInfo job : scheduler.getAllPendingJobs())
+    {
+      if (this.componentName.equals(job.getService())
+          && job.getExtras().containsKey(LEGACY_JOB_EXTRA_URL))
+      {
+        // Notification downloads of older versions, which used changing job ids
+        scheduler.cancel(job.getId());
+      }
+      else if (job.getId() == JOB_ID_UPDATE_CHECK
+          && job.getExtras().getBoolean(JOB_EXTRA_WIFI_ONLY, !wifiOnly) == wifiOnly)
+      {
+        scheduled = true;
+      }
+    }
+    if (scheduled)
+    {
+      // Rescheduling would restart the interval
+      return true;
+    }
 
     final PersistableBundle extras = new PersistableBundle();
-    extras.putString(Notification.KEY_EXTRA_ID, id);
-    extras.putString(Notification.KEY_EXTRA_URL, url.toString());
-    builder.setExtras(extras);
+    extras.putBoolean(JOB_EXTRA_WIFI_ONLY, wifiOnly);
+    final JobInfo.Builder builder = new JobInfo.Builder(JOB_ID_UPDATE_CHECK, this.componentName)
+        .setRequiredNetworkType(wifiOnly
+            ? JobInfo.NETWORK_TYPE_UNMETERED
+            : JobInfo.NETWORK_TYPE_ANY)
+        .setPeriodic(SCHEDULED_UPDATE_CHECK_INTERVAL)
+        .setPersisted(true)
+        .setExtras(extras);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+    {
+      builder.setRequiresBatteryNotLow(true);
+    }
+    return scheduler.schedule(builder.build()) == JobScheduler.RESULT_SUCCESS;
+  }
+
+  /**
+   * Checks the subscriptions for updates and runs {@code finished} once all downloads completed.
+   * Used by {@link DownloadJobService} for the scheduled update checks.
+   */
+  void runScheduledUpdateCheck(final Runnable finished)
+  {
+    this.engineEvents.add(new UpdateCheckEvent(EngineEvent.EngineEventType.SCHEDULED_UPDATE_CHECK,
+        finished));
+  }
 
-    final JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
-    if (scheduler != null)
+  /**
+   * Unregisters {@code finished} passed to {@link #runScheduledUpdateCheck(Runnable)}, e.g. when
+   * the job was stopped. Started downloads still complete. Handled after the update check in case
+   * that is still queued, so the callback can't be registered afterwards.
+   */
+  void cancelScheduledUpdateCheck(final Runnable finished)
+  {
+    this.engineEvents.add(new UpdateCheckEvent(EngineEvent.EngineEventType.CANCEL_UPDATE_CHECK,
+        finished));
+  }
+
+  /**
+   * Called when the automatic updates setting changed.
+   */
+  public void automaticUpdatesChanged()
+  {
+    this.connectivityChanged();
+    if (this.scheduledUpdateChecks)
     {
-      scheduler.schedule(builder.build());
+      this.scheduleUpdateChecks();
     }
   }
 
@@ -859,6 +1118,70 @@ public final class Engine
     this.downloader.connectivityChanged();
   }
 
+  /**
+   * Wakes up the downloader when a network becomes available or gets validated, or when it starts
+   * or stops being metered. Implicit connectivity broadcasts aren't delivered to apps on newer
+   * Android versions.
+   */
+  private void registerNetworkCallback()
+  {
+    final ConnectivityManager connManager = (ConnectivityManager) this.context
+        .getSystemService(Context.CONNECTIVITY_SERVICE);
+    if (connManager == null)
+    {
+      return;
+    }
+    final NetworkRequest request = new NetworkRequest.Builder()
+        .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+        .build();
+    connManager.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback()
+    {
+      // Callbacks all run on the same thread
+      private final HashMap<Network, Integer> states = new HashMap<>();
+
+      @Override
+      public void onAvailable(final Network network)
+      {
+        Log.d(TAG, "Network available");
+        connectivityChanged();
+      }
+
+      @Override
+      public void onCapabilitiesChanged(final Network network,
+          final NetworkCapabilities capabilities)
+      {
+        // Also called for changes like the signal strength, which don't matter to the downloader
+        final Integer state = getNetworkState(capabilities);
+        if (!state.equals(this.states.put(network, state)))
+        {
+          Log.d(TAG, "Network state changed");
+          connectivityChanged();
+        }
+      }
+
+      @Override
+      public void onLost(final Network network)
+      {
+        this.states.remove(network);
+      }
+    });
+  }
+
+  private static int getNetworkState(final NetworkCapabilities capabilities)
+  {
+    int state = NO_FLAG;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+        && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED))
+    {
+      state |= NETWORK_VALIDATED;
+    }
+    if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED))
+    {
+      state |= NETWORK_NOT_METERED;
+    }
+    return state;
+  }
+
   public interface SubscriptionUpdateCallback
   {
     void subscriptionUpdateRequested(boolean enabled);
@@ -0,0 +1,165 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.util.Locale;
+import java.util.TreeSet;
+
+import android.text.TextUtils;
+
+/**
+ * Rewrites network filters into a normal form, so filters which only differ in the way they are
+ * written end up as the same string and can be deduplicated.
+ * <p>
+ * The normal form has lower case option names, sorted and deduplicated options, sorted lower case
+ * {@code domain=} entries and no {@code ~match-case}. Unless {@code match-case} is given, the
+ * pattern is lower cased as well, except for regular expressions. Comments, element hiding
+ * filters and anything that can't be parsed unambiguously are kept as they are.
+ */
+final class FilterCanonicalizer
+{
+  private static final String OPTION_DOMAIN = "domain";
+  private static final String OPTION_MATCH_CASE = "match-case";
+  private static final String OPTION_NOT_MATCH_CASE = "~match-case";
+
+  private int rewritten = 0;
+
+  /**
+   * @param filter
+   * @return the normal form of {@code filter}, or {@code filter} itself if it already is in normal
+   *         form or can't be canonicalized
+   */
+  public String canonicalize(final String filter)
+  {
+    if (filter.isEmpty() || filter.charAt(0) == '!' || filter.charAt(0) == '['
+        || ElementHidingGrouper.findSeparator(filter) != -1)
+    {
+      return filter;
+    }
+
+    final int optionsStart = filter.lastIndexOf('$');
+    final String pattern = optionsStart == -1 ? filter : filter.substring(0, optionsStart);
+    // Another '$' in front of the options might be part of an option value, in which case we
+    // can't tell where the options start
+    if (pattern.indexOf('$') != -1)
+    {
+      return filter;
+    }
+
+    final TreeSet<String> options = new TreeSet<>();
+    if (optionsStart != -1)
+    {
+      for (final String option : filter.substring(optionsStart + 1).split(",", -1))
+      {
+        final String canonical = canonicalizeOption(option);
+        if (canonical == null)
+        {
+          return filter;
+        }
+        if (!canonical.equals(OPTION_NOT_MATCH_CASE))
+        {
+          options.add(canonical);
+        }
+      }
+    }
+
+    final StringBuilder builder = new StringBuilder(filter.length());
+    if (options.contains(OPTION_MATCH_CASE) || isRegularExpression(pattern))
+    {
+      builder.append(pattern);
+    }
+    else
+    {
+      builder.append(pattern.toLowerCase(Locale.ENGLISH));
+    }
+    if (!options.isEmpty())
+    {
+      builder.append('$').append(TextUtils.join(",", options));
+    }
+
+    final String canonical = builder.toString();
+    if (canonical.equals(filter))
+    {
+      return filter;
+    }
+    this.rewritten++;
+    return canonical;
+  }
+
+  /**
+   * @return the number of filters which were rewritten since the last reset
+   */
+  public int getRewritten()
+  {
+    return this.rewritten;
+  }
+
+  public void resetRewritten()
+  {
+    this.rewritten = 0;
+  }
+
+  /**
+   * @return the normal form of a single option, or {@code null} if it is malformed
+   */
+  private static String canonicalizeOption(final String option)
+  {
+    final int valueStart = option.indexOf('=');
+    final String name = (valueStart == -1 ? option : option.substring(0, valueStart))
+        .toLowerCase(Locale.ENGLISH);
+    final int nameStart = name.startsWith("~") ? 1 : 0;
+    if (name.length() == nameStart)
+    {
+      return null;
+    }
+    for (int i = nameStart; i < name.length(); i++)
+    {
+      final char c = name.charAt(i);
+      if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '_' || c == '-'))
+      {
+        return null;
+      }
+    }
+    if (valueStart == -1)
+    {
+      return name;
+    }
+
+    final String value = option.substring(valueStart + 1);
+    if (!name.equals(OPTION_DOMAIN))
+    {
+      return name + "=" + value;
+    }
+    final TreeSet<String> domains = new TreeSet<>();
+    for (final String domain : value.split("\\|", -1))
+    {
+      if (domain.isEmpty() || domain.equals("~"))
+      {
+        return null;
+      }
+      domains.add(domain.toLowerCase(Locale.ENGLISH));
+    }
+    return name + "=" + TextUtils.join("|", domains);
+  }
+
+  private static boolean isRegularExpression(final String pattern)
+  {
+    final String body = pattern.startsWith("@@") ? pattern.substring(2) : pattern;
+    return body.length() > 1 && body.startsWith("/") && body.endsWith("/");
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import android.util.Log;
+
+/**
+ * Incremental filter list updates.
+ * <p>
+ * Instead of the complete list, the server may answer a download with the differences to the
+ * version the client already has:
+ * <pre>
+ * [Adblock Plus Diff]
+ * ! Version: 201810190800
+ * ! Base: 201810180800
+ * ! Fingerprint: 0123456789abcdef0123456789abcdef
+ * -||removed.example.com^
+ * +||added.example.com^
+ * </pre>
+ * {@code Base} is the version the diff applies to, {@code Fingerprint} the {@link FilterFingerprint}
+ * of all filters of the new version. Both versions are treated as multisets, every line removes or
+ * adds a single occurrence of a filter. Other {@code !} lines are meta data, like in a complete
+ * list.
+ */
+final class FilterDiff
+{
+  private static final String TAG = FilterDiff.class.getSimpleName();
+  static final String HEADER = "[Adblock Plus Diff";
+  static final String KEY_BASE = "base";
+  static final String KEY_FINGERPRINT = "fingerprint";
+
+  /**
+   * Describes the filters a diff can be requested for.
+   */
+  static final class Request
+  {
+    final URL url;
+    final File baseFile;
+    final String baseVersion;
+
+    Request(final URL url, final File baseFile, final String baseVersion)
+    {
+      this.url = url;
+      this.baseFile = baseFile;
+      this.baseVersion = baseVersion;
+    }
+  }
+
+  private FilterDiff()
+  {
+    // Static helpers only
+  }
+
+  /**
+   * @param firstLine
+   * @return {@code true} if a response starting with {@code firstLine} is a diff
+   */
+  static boolean isDiff(final String firstLine)
+  {
+    return firstLine != null && firstLine.trim().startsWith(HEADER);
+  }
+
+  /**
+   * Applies a diff to the filters of {@code request} and writes the result to a new filter store.
+   *
+   * @param in
+   *          the diff, including its header line
+   * @param request
+   * @param meta
+   *          receives the meta data of the new version
+   * @param target
+   *          the filter store to create, left untouched if the diff can't be applied
+   * @return the number of filters written
+   * @throws IOException
+   *           if the diff doesn't apply to the base filters, or the result doesn't match the
+   *           fingerprint
+   */
+  static int apply(final InputStream in, final Request request, final Map<String, String> meta,
+      final File target) throws IOException
+  {
+    final HashMap<String, Integer> added = new HashMap<>();
+    final HashMap<String, Integer> removed = new HashMap<>();
+    final HashMap<String, String> diffMeta = new HashMap<>();
+    String base = null;
+    String fingerprint = null;
+
+    final BufferedReader r = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    for (String line = r.readLine(); line != null; line = r.readLine())
+    {
+      if (line.startsWith("+") || line.startsWith("-"))
+      {
+        final String filter = line.substring(1).trim();
+        if (!filter.isEmpty())
+        {
+          increment(line.charAt(0) == '+' ? added : removed, filter);
+        }
+      }
+      else if (line.startsWith("!"))
+      {
+        final int colon = line.indexOf(':');
+        final String key = colon > 0 ? line.substring(1, colon).trim().toLowerCase(Locale.ENGLISH)
+            : "";
+        if (KEY_BASE.equals(key))
+        {
+          base = line.substring(colon + 1).trim();
+        }
+        else if (KEY_FINGERPRINT.equals(key))
+        {
+          fingerprint = line.substring(colon + 1).trim();
+        }
+        else
+        {
+          Subscription.parseLine(line, diffMeta);
+        }
+      }
+    }
+
+    if (base == null || !base.equals(request.baseVersion))
+    {
+      throw new IOException("Diff base " + base + " doesn't match version "
+          + request.baseVersion);
+    }
+    if (fingerprint == null)
+    {
+      throw new IOException("Diff without fingerprint");
+    }
+
+    final int addedCount = count(added);
+    final int removedCount = count(removed);
+    final FilterStore store = FilterStore.open(request.baseFile);
+    if (!store.verify())
+    {
+      throw new IOException("Base filters are invalid");
+    }
+
+    try (final FilterStore.Writer writer = new FilterStore.Writer(target))
+    {
+      for (int i = 0; i < store.size(); i++)
+      {
+        final String filter = store.getFilter(i);
+        if (!decrement(removed, filter))
+        {
+          writer.add(filter);
+        }
+      }
+      if (!removed.isEmpty())
+      {
+        throw new IOException(removed.size() + " removed filters are missing in the base filters");
+      }
+      for (final Entry<String, Integer> e : added.entrySet())
+      {
+        for (int i = 0; i < e.getValue(); i++)
+        {
+          writer.add(e.getKey());
+        }
+      }
+      if (!fingerprint.equalsIgnoreCase(writer.getFingerprint().toString()))
+      {
+        throw new IOException("Fingerprint mismatch after applying diff");
+      }
+      writer.finish();
+      meta.putAll(diffMeta);
+      Log.d(TAG, "Applied diff from " + base + " to " + diffMeta.get(Subscription.KEY_VERSION)
+          + ", " + addedCount + " added, " + removedCount + " removed");
+      return writer.size();
+    }
+  }
+
+  private static void increment(final Map<String, Integer> counts, final String filter)
+  {
+    final Integer count = counts.get(filter);
+    counts.put(filter, count != null ? count + 1 : 1);
+  }
+
+  /**
+   * @return {@code true} if {@code filter} was counted
+   */
+  private static boolean decrement(final Map<String, Integer> counts, final String filter)
+  {
+    final Integer count = counts.get(filter);
+    if (count == null)
+    {
+      return false;
+    }
+    if (count <= 1)
+    {
+      counts.remove(filter);
+    }
+    else
+    {
+      counts.put(filter, count - 1);
+    }
+    return true;
+  }
+
+  private static int count(final Map<String, Integer> counts)
+  {
+    int total = 0;
+    for (final int count : counts.values())
+    {
+      total += count;
+    }
+    return total;
+  }
+}
@@ -0,0 +1,239 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Order independent 128 bit fingerprint of a multiset of filters.
+ * <p>
+ * Each filter is hashed with the 128 bit variant of MurmurHash3 (x64, seed 0) over its UTF-8
+ * bytes, and both 64 bit halves are summed up modulo 2<sup>64</sup>. Adding the same filters in any
+ * order yields the same fingerprint, and filters can be removed again by subtracting their hash.
+ * Using a sum instead of XOR keeps duplicates from cancelling each other out.
+ */
+final class FilterFingerprint
+{
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private long sum1 = 0;
+  private long sum2 = 0;
+
+  // Output of the last call to hash()
+  private long h1;
+  private long h2;
+
+  public void add(final String filter)
+  {
+    final byte[] bytes = filter.getBytes(StandardCharsets.UTF_8);
+    this.add(bytes, 0, bytes.length);
+  }
+
+  public void add(final byte[] bytes, final int offset, final int length)
+  {
+    this.hash(bytes, offset, length);
+    this.sum1 += this.h1;
+    this.sum2 += this.h2;
+  }
+
+  public void remove(final String filter)
+  {
+    final byte[] bytes = filter.getBytes(StandardCharsets.UTF_8);
+    this.remove(bytes, 0, bytes.length);
+  }
+
+  public void remove(final byte[] bytes, final int offset, final int length)
+  {
+    this.hash(bytes, offset, length);
+    this.sum1 -= this.h1;
+    this.sum2 -= this.h2;
+  }
+
+  public void add(final FilterFingerprint other)
+  {
+    this.sum1 += other.sum1;
+    this.sum2 += other.sum2;
+  }
+
+  public void clear()
+  {
+    this.sum1 = 0;
+    this.sum2 = 0;
+  }
+
+  @Override
+  public boolean equals(final Object o)
+  {
+    if (!(o instanceof FilterFingerprint))
+    {
+      return false;
+    }
+    final FilterFingerprint other = (FilterFingerprint) o;
+    return this.sum1 == other.sum1 && this.sum2 == other.sum2;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return (int) (this.sum1 ^ (this.sum1 >>> 32));
+  }
+
+  /**
+   * @return the fingerprint as 32 lower case hex digits
+   */
+  @Override
+  public String toString()
+  {
+    return String.format(Locale.ENGLISH, "%016x%016x", this.sum1, this.sum2);
+  }
+
+  /**
+   * Stores the 128 bit MurmurHash3 of the given bytes in {@code h1} and {@code h2}.
+   */
+  private void hash(final byte[] data, final int offset, final int length)
+  {
+    final int blocks = length >> 4;
+    long h1 = 0;
+    long h2 = 0;
+
+    for (int i = 0; i < blocks; i++)
+    {
+      long k1 = getLong(data, offset + (i << 4));
+      long k2 = getLong(data, offset + (i << 4) + 8);
+
+      k1 *= C1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= C2;
+      h1 ^= k1;
+
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      k2 *= C2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= C1;
+      h2 ^= k2;
+
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    final int tail = offset + (blocks << 4);
+    long k1 = 0;
+    long k2 = 0;
+    switch (length & 15)
+    {
+      case 15:
+        k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+        // fall through
+      case 14:
+        k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+        // fall through
+      case 13:
+        k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+        // fall through
+      case 12:
+        k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+        // fall through
+      case 11:
+        k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+        // fall through
+      case 10:
+        k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+        // fall through
+      case 9:
+        k2 ^= (long) (data[tail + 8] & 0xff);
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        // fall through
+      case 8:
+        k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+        // fall through
+      case 7:
+        k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+        // fall through
+      case 6:
+        k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+        // fall through
+      case 5:
+        k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+        // fall through
+      case 4:
+        k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+        // fall through
+      case 3:
+        k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+        // fall through
+      case 2:
+        k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+        // fall through
+      case 1:
+        k1 ^= (long) (data[tail] & 0xff);
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        // fall through
+      default:
+        break;
+    }
+
+    h1 ^= length;
+    h2 ^= length;
+
+    h1 += h2;
+    h2 += h1;
+
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+
+    h1 += h2;
+    h2 += h1;
+
+    this.h1 = h1;
+    this.h2 = h2;
+  }
+
+  private static long getLong(final byte[] data, final int index)
+  {
+    return (data[index] & 0xffL)
+        | (data[index + 1] & 0xffL) << 8
+        | (data[index + 2] & 0xffL) << 16
+        | (data[index + 3] & 0xffL) << 24
+        | (data[index + 4] & 0xffL) << 32
+        | (data[index + 5] & 0xffL) << 40
+        | (data[index + 6] & 0xffL) << 48
+        | (data[index + 7] & 0xffL) << 56;
+  }
+
+  private static long fmix64(long k)
+  {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb93fe53ef95aL;
+    k ^= k >>> 33;
+    return k;
+  }
+}
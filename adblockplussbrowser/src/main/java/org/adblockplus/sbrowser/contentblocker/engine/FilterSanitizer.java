@@ -0,0 +1,293 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Removes filters the content blocker can't handle, before they get written to the merged filter
+ * list. Every {@link Rule} is a precompiled, allocation free check, and instead of logging each
+ * rejected filter the number of rejections is counted per rule.
+ * <p>
+ * Filters can be checked as strings or as UTF-8 bytes. Rules only look at ASCII characters, which
+ * are encoded as single bytes in UTF-8, so both give the same result.
+ */
+final class FilterSanitizer
+{
+  private static final String TAG = FilterSanitizer.class.getSimpleName();
+
+  /**
+   * A check rejecting filters which aren't supported.
+   */
+  interface Rule
+  {
+    String getName();
+
+    boolean rejects(String filter);
+
+    /**
+     * @param data
+     *          only read with absolute methods
+     * @param offset
+     *          start of the UTF-8 encoded filter in {@code data}
+     * @param length
+     *          number of bytes
+     */
+    boolean rejects(ByteBuffer data, int offset, int length);
+  }
+
+  /**
+   * Rejects filters starting with one of the given prefixes.
+   */
+  static final class PrefixRule implements Rule
+  {
+    private final String name;
+    private final String[] prefixes;
+    private final byte[][] prefixBytes;
+
+    PrefixRule(final String name, final String... prefixes)
+    {
+      this.name = name;
+      this.prefixes = prefixes;
+      this.prefixBytes = new byte[prefixes.length][];
+      for (int i = 0; i < prefixes.length; i++)
+      {
+        this.prefixBytes[i] = prefixes[i].getBytes(StandardCharsets.UTF_8);
+      }
+    }
+
+    @Override
+    public String getName()
+    {
+      return this.name;
+    }
+
+    @Override
+    public boolean rejects(final String filter)
+    {
+      for (final String prefix : this.prefixes)
+      {
+        if (filter.startsWith(prefix))
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean rejects(final ByteBuffer data, final int offset, final int length)
+    {
+      for (final byte[] prefix : this.prefixBytes)
+      {
+        if (prefix.length <= length && startsWith(data, offset, prefix))
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean startsWith(final ByteBuffer data, final int offset, final byte[] prefix)
+    {
+      for (int i = 0; i < prefix.length; i++)
+      {
+        if (data.get(offset + i) != prefix[i])
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Rejects filters containing one of the given ASCII characters.
+   */
+  static final class CharacterRule implements Rule
+  {
+    private final String name;
+    private final boolean[] rejected = new boolean[128];
+
+    CharacterRule(final String name, final char first, final char last)
+    {
+      this(name, first, last, "");
+    }
+
+    /**
+     * Rejects the characters from {@code first} to {@code last}, except for {@code allowed}.
+     */
+    CharacterRule(final String name, final char first, final char last, final String allowed)
+    {
+      this.name = name;
+      for (char c = first; c <= last; c++)
+      {
+        this.rejected[c] = allowed.indexOf(c) == -1;
+      }
+    }
+
+    CharacterRule(final String name, final String characters)
+    {
+      this.name = name;
+      for (int i = 0; i < characters.length(); i++)
+      {
+        this.rejected[characters.charAt(i)] = true;
+      }
+    }
+
+    @Override
+    public String getName()
+    {
+      return this.name;
+    }
+
+    @Override
+    public boolean rejects(final String filter)
+    {
+      for (int i = 0; i < filter.length(); i++)
+      {
+        final char c = filter.charAt(i);
+        if (c < 128 && this.rejected[c])
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean rejects(final ByteBuffer data, final int offset, final int length)
+    {
+      for (int i = offset; i < offset + length; i++)
+      {
+        // Bytes of multi byte sequences are negative and never ASCII
+        final byte b = data.get(i);
+        if (b >= 0 && this.rejected[b])
+        {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private final Rule[] rules;
+  private final int[] rejections;
+
+  FilterSanitizer(final Rule... rules)
+  {
+    this.rules = rules;
+    this.rejections = new int[rules.length];
+  }
+
+  /**
+   * @return a sanitizer with all rules known to be needed for Samsung Internet
+   */
+  static FilterSanitizer createDefault()
+  {
+    return new FilterSanitizer(
+        // Filters that begin with '|$' , '||$' , '@@|$' or '@@||$' might crash Samsung Internet
+        // See https://issues.adblockplus.org/ticket/4772
+        new PrefixRule("empty-pattern", "|$", "||$", "@@|$", "@@||$"),
+        // Control characters can't be part of a filter and break the line based list, tabs are
+        // valid in filters though
+        new CharacterRule("control-character", '\u0000', '\u001f', "\t"),
+        new CharacterRule("delete-character", "\u007f"));
+  }
+
+  /**
+   * @param filter
+   * @return {@code true} if no rule rejects {@code filter}
+   */
+  public boolean accept(final String filter)
+  {
+    for (int i = 0; i < this.rules.length; i++)
+    {
+      if (this.rules[i].rejects(filter))
+      {
+        this.rejections[i]++;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param data
+   *          only read with absolute methods
+   * @param offset
+   *          start of the UTF-8 encoded filter in {@code data}
+   * @param length
+   *          number of bytes
+   * @return {@code true} if no rule rejects the filter
+   */
+  public boolean accept(final ByteBuffer data, final int offset, final int length)
+  {
+    for (int i = 0; i < this.rules.length; i++)
+    {
+      if (this.rules[i].rejects(data, offset, length))
+      {
+        this.rejections[i]++;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of rejected filters per rule name, since the last reset
+   */
+  public Map<String, Integer> getRejections()
+  {
+    final LinkedHashMap<String, Integer> rejections = new LinkedHashMap<>();
+    for (int i = 0; i < this.rules.length; i++)
+    {
+      rejections.put(this.rules[i].getName(), this.rejections[i]);
+    }
+    return rejections;
+  }
+
+  public void resetRejections()
+  {
+    for (int i = 0; i < this.rejections.length; i++)
+    {
+      this.rejections[i] = 0;
+    }
+  }
+
+  /**
+   * Logs the rules which rejected filters since the last reset, then resets the counters.
+   */
+  public void logAndResetRejections()
+  {
+    for (int i = 0; i < this.rules.length; i++)
+    {
+      if (this.rejections[i] > 0)
+      {
+        Log.d(TAG, "Rule '" + this.rules[i].getName() + "' rejected " + this.rejections[i]
+            + " filters");
+      }
+    }
+    this.resetRejections();
+  }
+}
@@ -0,0 +1,377 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Uncompressed, memory mapped storage for the filters of a single subscription.
+ * <p>
+ * The file is laid out as follows, all integers are big endian:
+ * <pre>
+ * header, padded to PAGE_SIZE:
+ *   int    magic
+ *   int    format version
+ *   int    number of filters (n)
+ *   int    length of the filter data in bytes
+ *   int    file offset of the offset table
+ *   short  length of the filters hash, followed by the hash in UTF-8
+ * filter data, starting at PAGE_SIZE:
+ *   UTF-8 bytes of all filters, without separators
+ * offset table:
+ *   n + 1 ints, start of each filter relative to the filter data
+ * padding up to the next multiple of PAGE_SIZE
+ * </pre>
+ * The header is written last, so a file which was not written completely fails to open.
+ * <p>
+ * Format versions:
+ * <ol start="0">
+ * <li>GZIP compressed {@code DataOutputStream}, detected by {@link #isLegacyFormat(File)}</li>
+ * <li>the hash is the MD5 of the sorted filters</li>
+ * <li>the hash is a {@link FilterFingerprint}, computed while the filters get written</li>
+ * </ol>
+ */
+final class FilterStore
+{
+  static final int PAGE_SIZE = 4096;
+  static final int FORMAT_VERSION = 2;
+  static final int MIN_FORMAT_VERSION = 1;
+
+  private static final int MAGIC = 0x41425046; // "ABPF"
+  private static final int HEADER_SIZE = 22;
+  private static final int MAX_HASH_LENGTH = PAGE_SIZE - HEADER_SIZE;
+  private static final int GZIP_MAGIC = 0x8b1f;
+
+  private final ByteBuffer buffer;
+  private final ByteBuffer data;
+  private final int version;
+  private final int count;
+  private final int tableOffset;
+  private final String hash;
+  private byte[] scratch = new byte[256];
+
+  private FilterStore(final ByteBuffer buffer, final int version, final int count,
+      final int dataLength, final int tableOffset, final String hash)
+  {
+    this.buffer = buffer;
+    this.version = version;
+    this.count = count;
+    this.tableOffset = tableOffset;
+    this.hash = hash;
+    this.buffer.position(PAGE_SIZE);
+    this.buffer.limit(PAGE_SIZE + dataLength);
+    this.data = this.buffer.slice();
+    this.buffer.clear();
+  }
+
+  /**
+   * Maps the given file into memory.
+   *
+   * @param file
+   * @return the opened store
+   * @throws IOException
+   *           if the file is missing, truncated or not in a supported format
+   */
+  public static FilterStore open(final File file) throws IOException
+  {
+    try (final RandomAccessFile raf = new RandomAccessFile(file, "r"))
+    {
+      final long size = raf.length();
+      if (size < PAGE_SIZE || size > Integer.MAX_VALUE)
+      {
+        throw new IOException("Invalid filter store size: " + size);
+      }
+      // The mapping stays valid after the channel got closed
+      final ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+      if (buffer.getInt(0) != MAGIC)
+      {
+        throw new IOException("Not a filter store: " + file);
+      }
+      final int version = buffer.getInt(4);
+      if (version < MIN_FORMAT_VERSION || version > FORMAT_VERSION)
+      {
+        throw new IOException("Unsupported filter store version: " + version);
+      }
+      final int count = buffer.getInt(8);
+      final int dataLength = buffer.getInt(12);
+      final int tableOffset = buffer.getInt(16);
+      final int hashLength = buffer.getShort(20) & 0xffff;
+      if (count < 0 || dataLength < 0 || hashLength > MAX_HASH_LENGTH
+          || tableOffset < PAGE_SIZE + dataLength
+          || (long) tableOffset + 4L * (count + 1) > size
+          || buffer.getInt(tableOffset + 4 * count) != dataLength)
+      {
+        throw new IOException("Corrupted filter store header: " + file);
+      }
+      final byte[] hashBytes = new byte[hashLength];
+      buffer.position(HEADER_SIZE);
+      buffer.get(hashBytes);
+      buffer.clear();
+
+      return new FilterStore(buffer, version, count, dataLength, tableOffset,
+          new String(hashBytes, StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * @param file
+   * @return {@code true} if {@code file} was written using the GZIP based format, which was in use
+   *         before this store existed
+   */
+  public static boolean isLegacyFormat(final File file)
+  {
+    try (final FileInputStream in = new FileInputStream(file))
+    {
+      final int b0 = in.read();
+      final int b1 = in.read();
+      return b0 != -1 && b1 != -1 && (b0 | (b1 << 8)) == GZIP_MAGIC;
+    }
+    catch (final IOException e)
+    {
+      return false;
+    }
+  }
+
+  public int getVersion()
+  {
+    return this.version;
+  }
+
+  public int size()
+  {
+    return this.count;
+  }
+
+  public String getHash()
+  {
+    return this.hash;
+  }
+
+  int getStart(final int index)
+  {
+    return this.buffer.getInt(this.tableOffset + 4 * index);
+  }
+
+  int getLength(final int index)
+  {
+    return this.getStart(index + 1) - this.getStart(index);
+  }
+
+  /**
+   * @return the UTF-8 bytes of all filters, see {@link #getStart(int)}. The buffer is shared, so
+   *         only absolute methods may be used on it, or a duplicate.
+   */
+  ByteBuffer getData()
+  {
+    return this.data;
+  }
+
+  /**
+   * Decodes a single filter. Not thread safe, as a shared decoding buffer is used.
+   *
+   * @param index
+   * @return the filter
+   */
+  public String getFilter(final int index)
+  {
+    final int length = this.readBytes(index);
+    return new String(this.scratch, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Copies the UTF-8 bytes of a filter into {@code scratch}.
+   *
+   * @return the number of bytes
+   */
+  private int readBytes(final int index)
+  {
+    if (index < 0 || index >= this.count)
+    {
+      throw new IndexOutOfBoundsException("Filter index " + index + " out of " + this.count);
+    }
+    final int start = this.getStart(index);
+    final int length = this.getStart(index + 1) - start;
+    if (length > this.scratch.length)
+    {
+      this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+    }
+    this.data.position(start);
+    this.data.get(this.scratch, 0, length);
+    return length;
+  }
+
+  /**
+   * Computes the fingerprint of the stored filters, without decoding them.
+   */
+  public FilterFingerprint computeFingerprint()
+  {
+    final FilterFingerprint fingerprint = new FilterFingerprint();
+    for (int i = 0; i < this.count; i++)
+    {
+      final int length = this.readBytes(i);
+      fingerprint.add(this.scratch, 0, length);
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Checks the stored filters against the hash in the header. Only supported for stores in the
+   * current format version, older stores need to be checked by the caller.
+   *
+   * @return {@code true} if the filters match the hash
+   */
+  public boolean verify()
+  {
+    return this.version == FORMAT_VERSION && this.computeFingerprint().toString().equals(this.hash);
+  }
+
+  public void copyFilters(final Collection<String> filters)
+  {
+    for (int i = 0; i < this.count; i++)
+    {
+      filters.add(this.getFilter(i));
+    }
+  }
+
+  /**
+   * Sequentially writes a filter store. The fingerprint of the filters is computed while they are
+   * added. The store is written to a temporary file, which only replaces the target once
+   * {@link #finish()} completed, see {@link AtomicFiles}. Closing an unfinished writer leaves the
+   * target untouched.
+   */
+  static final class Writer implements Closeable
+  {
+    private final File file;
+    private final FileOutputStream fileOut;
+    private final DataOutputStream out;
+    private final FilterFingerprint fingerprint = new FilterFingerprint();
+    private int[] offsets = new int[1024];
+    private int count = 0;
+    private int dataLength = 0;
+    private boolean finished = false;
+
+    Writer(final File file) throws IOException
+    {
+      this.file = file;
+      this.fileOut = AtomicFiles.startWrite(file);
+      this.out = new DataOutputStream(new BufferedOutputStream(this.fileOut, 64 * 1024));
+      // Reserve the header page, the header itself gets written by finish()
+      this.out.write(new byte[PAGE_SIZE]);
+    }
+
+    public int size()
+    {
+      return this.count;
+    }
+
+    public void add(final String filter) throws IOException
+    {
+      final byte[] bytes = filter.getBytes(StandardCharsets.UTF_8);
+      this.add(bytes, 0, bytes.length);
+    }
+
+    public void add(final byte[] bytes, final int offset, final int length) throws IOException
+    {
+      if (this.count + 1 >= this.offsets.length)
+      {
+        this.offsets = Arrays.copyOf(this.offsets, this.offsets.length * 2);
+      }
+      this.out.write(bytes, offset, length);
+      this.fingerprint.add(bytes, offset, length);
+      this.offsets[this.count++] = this.dataLength;
+      this.dataLength += length;
+    }
+
+    public FilterFingerprint getFingerprint()
+    {
+      return this.fingerprint;
+    }
+
+    /**
+     * Writes the offset table and the header, then replaces the target file.
+     *
+     * @return the hash stored in the header
+     * @throws IOException
+     */
+    public String finish() throws IOException
+    {
+      final String hash = this.fingerprint.toString();
+      final byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+
+      this.offsets[this.count] = this.dataLength;
+      final int tableOffset = PAGE_SIZE + this.dataLength;
+      for (int i = 0; i <= this.count; i++)
+      {
+        this.out.writeInt(this.offsets[i]);
+      }
+      final int end = tableOffset + 4 * (this.count + 1);
+      final int padding = (PAGE_SIZE - end % PAGE_SIZE) % PAGE_SIZE;
+      this.out.write(new byte[padding]);
+      this.out.flush();
+
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + hashBytes.length);
+      header.putInt(MAGIC);
+      header.putInt(FORMAT_VERSION);
+      header.putInt(this.count);
+      header.putInt(this.dataLength);
+      header.putInt(tableOffset);
+      header.putShort((short) hashBytes.length);
+      header.put(hashBytes);
+      header.flip();
+      final FileChannel channel = this.fileOut.getChannel();
+      while (header.hasRemaining())
+      {
+        channel.write(header, header.position());
+      }
+      AtomicFiles.finishWrite(this.fileOut, this.file);
+      this.finished = true;
+      return hash;
+    }
+
+    public boolean isFinished()
+    {
+      return this.finished;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      if (this.finished)
+      {
+        this.out.close();
+      }
+      else
+      {
+        AtomicFiles.abortWrite(this.fileOut, this.file);
+      }
+    }
+  }
+}
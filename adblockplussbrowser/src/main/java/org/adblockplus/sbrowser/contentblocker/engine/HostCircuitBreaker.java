@@ -0,0 +1,91 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.util.HashMap;
+
+/**
+ * Stops requests to hosts which failed repeatedly. After {@code threshold} consecutive failures
+ * a host is blocked for a backoff period. The first request after that period decides: a success
+ * unblocks the host, another failure blocks it again for a longer period.
+ * <p>
+ * Not thread-safe.
+ */
+final class HostCircuitBreaker
+{
+  private final int threshold;
+  private final long baseMillis;
+  private final long maxMillis;
+  private final HashMap<String, State> states = new HashMap<>();
+
+  private static final class State
+  {
+    private int failures = 0;
+    private long blockedUntil = 0;
+  }
+
+  /**
+   * @param threshold
+   *          number of consecutive failures blocking a host
+   * @param baseMillis
+   *          time a host is blocked for the first time
+   * @param maxMillis
+   *          longest time a host is blocked
+   */
+  HostCircuitBreaker(final int threshold, final long baseMillis, final long maxMillis)
+  {
+    this.threshold = threshold;
+    this.baseMillis = baseMillis;
+    this.maxMillis = maxMillis;
+  }
+
+  /**
+   * @return the time in milliseconds {@code host} is still blocked for, 0 if requests are allowed
+   */
+  long getBlockedMillis(final String host, final long now)
+  {
+    final State state = this.states.get(host);
+    return state == null ? 0 : Math.max(0, state.blockedUntil - now);
+  }
+
+  void recordSuccess(final String host)
+  {
+    this.states.remove(host);
+  }
+
+  /**
+   * @return {@code true} if {@code host} got blocked by this failure
+   */
+  boolean recordFailure(final String host, final long now)
+  {
+    State state = this.states.get(host);
+    if (state == null)
+    {
+      state = new State();
+      this.states.put(host, state);
+    }
+    state.failures++;
+    if (state.failures < this.threshold)
+    {
+      return false;
+    }
+    state.blockedUntil = now
+        + Backoff.delay(state.failures - this.threshold, this.baseMillis, this.maxMillis);
+    return true;
+  }
+}
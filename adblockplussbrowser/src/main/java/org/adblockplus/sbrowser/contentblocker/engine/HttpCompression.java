@@ -0,0 +1,266 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Negotiates compressed responses and decompresses them while they are read.
+ * <p>
+ * Setting {@code Accept-Encoding} explicitly disables the transparent gzip handling of
+ * {@link HttpURLConnection}, so both {@code gzip} and {@code deflate} get decoded here. This also
+ * allows measuring the bytes actually transferred and the time spent decompressing.
+ */
+final class HttpCompression
+{
+  static final String ACCEPT_ENCODING = "gzip, deflate";
+
+  private HttpCompression()
+  {
+    // Static helpers only
+  }
+
+  /**
+   * Asks for a compressed response, needs to be called before connecting.
+   */
+  static void requestCompression(final HttpURLConnection connection)
+  {
+    connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+  }
+
+  /**
+   * @param connection
+   * @return the decoded response body
+   * @throws IOException
+   */
+  static ResponseStream openResponse(final HttpURLConnection connection) throws IOException
+  {
+    return decode(connection.getInputStream(), getEncoding(connection));
+  }
+
+  /**
+   * @return the normalized content encoding of the response
+   */
+  static String getEncoding(final HttpURLConnection connection)
+  {
+    return connection.getContentEncoding() != null
+        ? connection.getContentEncoding().trim().toLowerCase(Locale.ENGLISH) : "identity";
+  }
+
+  /**
+   * @param in
+   *          a response body as it was received
+   * @param encoding
+   *          the content encoding, as returned by {@link #getEncoding(HttpURLConnection)}
+   * @return the decoded response body
+   * @throws IOException
+   */
+  static ResponseStream decode(final InputStream in, final String encoding) throws IOException
+  {
+    return decode(in, encoding, null);
+  }
+
+  /**
+   * @param in
+   *          a response body as it was received
+   * @param encoding
+   *          the content encoding, as returned by {@link #getEncoding(HttpURLConnection)}
+   * @param transfer
+   *          the network stream {@code in} reads from, if {@code in} doesn't only read from the
+   *          network, so only bytes actually transferred are counted
+   * @return the decoded response body
+   * @throws IOException
+   */
+  static ResponseStream decode(final InputStream in, final String encoding,
+      final MeteredInputStream transfer) throws IOException
+  {
+    final MeteredInputStream raw = new MeteredInputStream(in);
+    final InputStream decoded;
+    switch (encoding)
+    {
+      case "gzip":
+      case "x-gzip":
+        decoded = new GZIPInputStream(raw, 8192);
+        break;
+      case "deflate":
+        decoded = openDeflate(raw);
+        break;
+      default:
+        decoded = raw;
+        break;
+    }
+    return new ResponseStream(decoded, raw, transfer != null ? transfer : raw, encoding);
+  }
+
+  /**
+   * "deflate" should be zlib wrapped, but some servers send raw deflate data.
+   */
+  private static InputStream openDeflate(final InputStream raw) throws IOException
+  {
+    final BufferedInputStream in = new BufferedInputStream(raw, 8192);
+    in.mark(2);
+    final int cmf = in.read();
+    final int flg = in.read();
+    in.reset();
+    final boolean zlib = cmf != -1 && flg != -1 && (cmf & 0x0f) == 8
+        && ((cmf << 8) | flg) % 31 == 0;
+    return new DeflateInputStream(in, new Inflater(!zlib));
+  }
+
+  /**
+   * Ends its own {@link Inflater} on close, {@link InflaterInputStream} only ends the default one,
+   * leaving the native memory of any other to the finalizer.
+   */
+  private static final class DeflateInputStream extends InflaterInputStream
+  {
+    DeflateInputStream(final InputStream in, final Inflater inflater)
+    {
+      super(in, inflater, 8192);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try
+      {
+        super.close();
+      }
+      finally
+      {
+        this.inf.end();
+      }
+    }
+  }
+
+  /**
+   * Counts bytes and the time spent reading them.
+   */
+  static class MeteredInputStream extends FilterInputStream
+  {
+    long bytes = 0;
+    long nanos = 0;
+
+    MeteredInputStream(final InputStream in)
+    {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+      final long start = System.nanoTime();
+      final int b = super.read();
+      this.nanos += System.nanoTime() - start;
+      if (b != -1)
+      {
+        this.bytes++;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException
+    {
+      final long start = System.nanoTime();
+      final int read = super.read(buffer, offset, length);
+      this.nanos += System.nanoTime() - start;
+      if (read > 0)
+      {
+        this.bytes += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException
+    {
+      if (n <= 0)
+      {
+        return 0;
+      }
+      // Keeps the counters correct, skipping is rare
+      final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      final int read = this.read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+  }
+
+  /**
+   * Decoded response body, which also reports transfer statistics.
+   */
+  static final class ResponseStream extends MeteredInputStream
+  {
+    private final MeteredInputStream raw;
+    private final MeteredInputStream transfer;
+    private final String encoding;
+
+    private ResponseStream(final InputStream decoded, final MeteredInputStream raw,
+        final MeteredInputStream transfer, final String encoding)
+    {
+      super(decoded);
+      this.raw = raw;
+      this.transfer = transfer;
+      this.encoding = encoding;
+    }
+
+    public String getEncoding()
+    {
+      return this.encoding;
+    }
+
+    /**
+     * @return the number of bytes received so far
+     */
+    public long getTransferredBytes()
+    {
+      return this.transfer.bytes;
+    }
+
+    /**
+     * @return the number of bytes decoded so far
+     */
+    public long getDecodedBytes()
+    {
+      return this.bytes;
+    }
+
+    /**
+     * @return the time spent decompressing, without the time spent waiting for the network
+     */
+    public long getDecompressionMillis()
+    {
+      return Math.max(0, this.nanos - this.raw.nanos) / 1000000;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format(Locale.ENGLISH, "%d bytes transferred (%s), %d bytes decoded, "
+          + "%d ms decompressing", this.getTransferredBytes(), this.encoding,
+          this.getDecodedBytes(), this.getDecompressionMillis());
+    }
+  }
+}
@@ -0,0 +1,308 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Persistent, reference counted union of the filters of all enabled subscriptions.
+ * <p>
+ * Every filter is mapped to the number of merged subscriptions containing it, so subscriptions can
+ * be added, removed or updated by applying their difference only. For every merged subscription the
+ * hash of the {@link FilterStore} it was built from gets recorded, which allows checking the index
+ * against the current {@code .sub} files.
+ */
+final class MergedFilters
+{
+  private static final String TAG = MergedFilters.class.getSimpleName();
+  private static final int MAGIC = 0x4142504d; // "ABPM"
+  private static final int FORMAT_VERSION = 1;
+
+  private final File file;
+  private final HashMap<String, Integer> counts = new HashMap<>();
+  private final HashMap<String, String> sources = new HashMap<>();
+  // Fingerprint of the distinct filters, kept up to date while filters come and go
+  private final FilterFingerprint fingerprint = new FilterFingerprint();
+  private boolean dirty = false;
+
+  private MergedFilters(final File file)
+  {
+    this.file = file;
+  }
+
+  /**
+   * Loads the index from {@code file}. A missing or damaged file results in an empty index.
+   *
+   * @param file
+   * @return the index
+   */
+  public static MergedFilters load(final File file)
+  {
+    final MergedFilters merged = new MergedFilters(file);
+    if (!file.exists())
+    {
+      return merged;
+    }
+    try (final DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), 64 * 1024)))
+    {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+      {
+        throw new IOException("Unsupported merged filters file");
+      }
+      final int numSources = in.readInt();
+      for (int i = 0; i < numSources; i++)
+      {
+        final String id = in.readUTF();
+        merged.sources.put(id, in.readUTF());
+      }
+      final int numFilters = in.readInt();
+      byte[] b = new byte[256];
+      for (int i = 0; i < numFilters; i++)
+      {
+        final int count = in.readInt();
+        final int length = in.readInt();
+        if (length > b.length)
+        {
+          b = new byte[Math.max(length, b.length * 2)];
+        }
+        in.readFully(b, 0, length);
+        merged.counts.put(new String(b, 0, length, StandardCharsets.UTF_8), count);
+        merged.fingerprint.add(b, 0, length);
+      }
+      Log.d(TAG, "Loaded " + numFilters + " merged filters of " + numSources + " subscriptions");
+    }
+    catch (final Throwable t)
+    {
+      Log.w(TAG, "Failed to load merged filters, rebuilding", t);
+      merged.clear();
+    }
+    return merged;
+  }
+
+  public void save() throws IOException
+  {
+    if (!this.dirty)
+    {
+      return;
+    }
+    final FileOutputStream fileOut = AtomicFiles.startWrite(this.file);
+    boolean written = false;
+    try
+    {
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut,
+          64 * 1024));
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(this.sources.size());
+      for (final Entry<String, String> e : this.sources.entrySet())
+      {
+        out.writeUTF(e.getKey());
+        out.writeUTF(e.getValue());
+      }
+      out.writeInt(this.counts.size());
+      for (final Entry<String, Integer> e : this.counts.entrySet())
+      {
+        final byte[] b = e.getKey().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(e.getValue());
+        out.writeInt(b.length);
+        out.write(b);
+      }
+      out.flush();
+      AtomicFiles.finishWrite(fileOut, this.file);
+      written = true;
+    }
+    finally
+    {
+      if (!written)
+      {
+        AtomicFiles.abortWrite(fileOut, this.file);
+      }
+    }
+    this.dirty = false;
+  }
+
+  public void clear()
+  {
+    this.counts.clear();
+    this.sources.clear();
+    this.fingerprint.clear();
+    this.dirty = true;
+  }
+
+  /**
+   * @return the ids of all merged subscriptions, mapped to the hash of their filter store
+   */
+  public Map<String, String> getSources()
+  {
+    return Collections.unmodifiableMap(this.sources);
+  }
+
+  public boolean hasSource(final String id)
+  {
+    return this.sources.containsKey(id);
+  }
+
+  public String getSourceHash(final String id)
+  {
+    return this.sources.get(id);
+  }
+
+  /**
+   * @return all distinct filters of the merged subscriptions
+   */
+  public Set<String> getFilters()
+  {
+    return Collections.unmodifiableSet(this.counts.keySet());
+  }
+
+  public int size()
+  {
+    return this.counts.size();
+  }
+
+  /**
+   * @return the fingerprint of all distinct filters, see {@link #getFilters()}
+   */
+  public FilterFingerprint getFingerprint()
+  {
+    final FilterFingerprint copy = new FilterFingerprint();
+    copy.add(this.fingerprint);
+    return copy;
+  }
+
+  /**
+   * Merges the filters of a subscription, which must not be merged yet.
+   */
+  public void addSource(final String id, final String hash, final Collection<String> filters)
+  {
+    for (final String filter : filters)
+    {
+      this.add(filter);
+    }
+    this.sources.put(id, hash);
+    this.dirty = true;
+  }
+
+  /**
+   * Removes the filters of a merged subscription.
+   */
+  public void removeSource(final String id, final Collection<String> filters)
+  {
+    for (final String filter : filters)
+    {
+      this.remove(filter);
+    }
+    this.sources.remove(id);
+    this.dirty = true;
+  }
+
+  /**
+   * Replaces the filters of a merged subscription by applying the difference between both versions.
+   * Filter stores may contain a filter more than once, so both versions are treated as multisets.
+   *
+   * @param id
+   * @param hash
+   *          the hash of the new filter store
+   * @param previous
+   *          the filters which were merged so far, mapped to their number of occurrences. Gets
+   *          consumed.
+   * @param current
+   *          the new filters
+   * @return the number of changed filters
+   */
+  public int replaceSource(final String id, final String hash,
+      final Map<String, Integer> previous, final FilterStore current)
+  {
+    int changes = 0;
+    for (int i = 0; i < current.size(); i++)
+    {
+      final String filter = current.getFilter(i);
+      final Integer count = previous.get(filter);
+      if (count == null)
+      {
+        this.add(filter);
+        changes++;
+      }
+      else if (count == 1)
+      {
+        previous.remove(filter);
+      }
+      else
+      {
+        previous.put(filter, count - 1);
+      }
+    }
+    for (final Entry<String, Integer> e : previous.entrySet())
+    {
+      for (int i = 0; i < e.getValue(); i++)
+      {
+        this.remove(e.getKey());
+        changes++;
+      }
+    }
+    previous.clear();
+    this.sources.put(id, hash);
+    this.dirty = true;
+    return changes;
+  }
+
+  private void add(final String filter)
+  {
+    final Integer count = this.counts.get(filter);
+    this.counts.put(filter, count != null ? count + 1 : 1);
+    if (count == null)
+    {
+      this.fingerprint.add(filter);
+    }
+  }
+
+  private void remove(final String filter)
+  {
+    final Integer count = this.counts.get(filter);
+    if (count == null)
+    {
+      return;
+    }
+    if (count <= 1)
+    {
+      this.counts.remove(filter);
+      this.fingerprint.remove(filter);
+    }
+    else
+    {
+      this.counts.put(filter, count - 1);
+    }
+  }
+}
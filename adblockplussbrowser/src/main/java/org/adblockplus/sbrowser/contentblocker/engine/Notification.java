@@ -44,20 +44,30 @@ public class Notification
 {
   private static final String TAG = Notification.class.getSimpleName();
   public static final String NOTIFICATION_URL = "https://notification.adblockplus.org/notification.json";
-  public static final String KEY_EXTRA_ID = "_extra_id";
-  public static final String KEY_EXTRA_URL = "_extra_url";
   private static final String DEFAULT_NOTIFICATION_VERSION = "0";
 
   static void persistNotificationData(final File filtersFile, final String text)
   {
-    try (final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(
-        new GZIPOutputStream(new FileOutputStream(filtersFile)))))
+    FileOutputStream fileOut = null;
+    try
     {
+      fileOut = AtomicFiles.startWrite(filtersFile);
+      final GZIPOutputStream gzipOut = new GZIPOutputStream(fileOut);
+      final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(gzipOut));
       outputStream.write(text.getBytes());
+      outputStream.flush();
+      gzipOut.finish();
+      AtomicFiles.finishWrite(fileOut, filtersFile);
+      // Releases the deflater, the file itself is closed already
+      outputStream.close();
     }
     catch (IOException e)
     {
       Log.d(TAG, "Failed to write notification data to internal storage.", e);
+      if (fileOut != null)
+      {
+        AtomicFiles.abortWrite(fileOut, filtersFile);
+      }
     }
   }
 
@@ -0,0 +1,252 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Merges filter stores into the filter file without decoding a single filter into a
+ * {@code String}, for devices where memory is scarce.
+ * <p>
+ * Filters stay UTF-8 byte ranges of the memory mapped stores throughout. Duplicates are found
+ * through an open addressing hash table of filter numbers, hashing and comparing the bytes in
+ * place, and the output is written to a {@code FileChannel} through a single direct buffer. Apart
+ * from the hash table, which takes four bytes per slot, merging allocates no memory per filter.
+ * <p>
+ * Filters are written the way they are stored, the string based optimizations of
+ * {@link Subscriptions} like {@link FilterCanonicalizer} are skipped.
+ */
+final class PassthroughMerger
+{
+  private static final String TAG = PassthroughMerger.class.getSimpleName();
+
+  private static final int OUTPUT_BUFFER_SIZE = 256 * 1024;
+  private static final byte NEWLINE = '\n';
+
+  private final FilterStore[] stores;
+  private final ByteBuffer[] data;
+  // Number of the first filter of each store, filters are numbered through all stores
+  private final int[] firstFilter;
+  // Filter number + 1 of each written filter, 0 marks an empty slot
+  private final int[] table;
+  private final int mask;
+
+  PassthroughMerger(final List<FilterStore> stores)
+  {
+    this.stores = stores.toArray(new FilterStore[stores.size()]);
+    this.data = new ByteBuffer[this.stores.length];
+    this.firstFilter = new int[this.stores.length];
+    int total = 0;
+    for (int i = 0; i < this.stores.length; i++)
+    {
+      this.data[i] = this.stores[i].getData();
+      this.firstFilter[i] = total;
+      total += this.stores[i].size();
+    }
+    // Keep the load factor below 0.5
+    int capacity = 16;
+    while (capacity < total * 2)
+    {
+      capacity <<= 1;
+    }
+    this.table = new int[capacity];
+    this.mask = capacity - 1;
+  }
+
+  /**
+   * Writes the filter headers, all distinct filters accepted by {@code sanitizer} and then
+   * {@code extraFilters}.
+   *
+   * @param output
+   * @param sanitizer
+   * @param extraFilters
+   * @return the number of filters written
+   * @throws IOException
+   */
+  public int write(final File output, final FilterSanitizer sanitizer,
+      final Collection<String> extraFilters) throws IOException
+  {
+    int count = 0;
+    int duplicates = 0;
+    try (final FileOutputStream fileOut = new FileOutputStream(output);
+        final FileChannel channel = fileOut.getChannel())
+    {
+      final ByteBuffer out = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+      final StringWriter headers = new StringWriter();
+      Engine.writeFilterHeaders(headers);
+      put(channel, out, ByteBuffer.wrap(headers.toString().getBytes(StandardCharsets.UTF_8)));
+
+      for (int s = 0; s < this.stores.length; s++)
+      {
+        final FilterStore store = this.stores[s];
+        final ByteBuffer data = this.data[s];
+        final ByteBuffer source = data.duplicate();
+        for (int i = 0; i < store.size(); i++)
+        {
+          final int start = store.getStart(i);
+          final int length = store.getStart(i + 1) - start;
+          if (!sanitizer.accept(data, start, length))
+          {
+            continue;
+          }
+          if (!this.insert(s, i, start, length))
+          {
+            duplicates++;
+            continue;
+          }
+          source.limit(start + length);
+          source.position(start);
+          put(channel, out, source);
+          put(channel, out, NEWLINE);
+          count++;
+        }
+      }
+
+      for (final String filter : extraFilters)
+      {
+        put(channel, out, ByteBuffer.wrap(filter.getBytes(StandardCharsets.UTF_8)));
+        put(channel, out, NEWLINE);
+        count++;
+      }
+
+      flush(channel, out);
+    }
+    Log.d(TAG, "Wrote " + count + " filters, skipped " + duplicates + " duplicates");
+    return count;
+  }
+
+  /**
+   * Adds filter {@code index} of store {@code s} to the hash table.
+   *
+   * @return {@code false} if the same filter was added before
+   */
+  private boolean insert(final int s, final int index, final int start, final int length)
+  {
+    final ByteBuffer data = this.data[s];
+    int slot = hash(data, start, length) & this.mask;
+    for (int entry = this.table[slot]; entry != 0; entry = this.table[slot])
+    {
+      final int other = this.findStore(entry - 1);
+      final FilterStore otherStore = this.stores[other];
+      final int otherIndex = entry - 1 - this.firstFilter[other];
+      final int otherStart = otherStore.getStart(otherIndex);
+      if (otherStore.getStart(otherIndex + 1) - otherStart == length
+          && equals(data, start, this.data[other], otherStart, length))
+      {
+        return false;
+      }
+      slot = (slot + 1) & this.mask;
+    }
+    this.table[slot] = this.firstFilter[s] + index + 1;
+    return true;
+  }
+
+  private int findStore(final int filter)
+  {
+    int s = this.firstFilter.length - 1;
+    while (this.firstFilter[s] > filter)
+    {
+      s--;
+    }
+    return s;
+  }
+
+  /**
+   * FNV-1a with the final mix of MurmurHash3, the FNV-1a lower bits alone are too regular for a
+   * power of two table.
+   */
+  private static int hash(final ByteBuffer data, final int start, final int length)
+  {
+    int h = 0x811c9dc5;
+    for (int i = start; i < start + length; i++)
+    {
+      h ^= data.get(i) & 0xff;
+      h *= 0x01000193;
+    }
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  private static boolean equals(final ByteBuffer a, final int aStart, final ByteBuffer b,
+      final int bStart, final int length)
+  {
+    for (int i = 0; i < length; i++)
+    {
+      if (a.get(aStart + i) != b.get(bStart + i))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void put(final FileChannel channel, final ByteBuffer out, final byte b)
+      throws IOException
+  {
+    if (!out.hasRemaining())
+    {
+      flush(channel, out);
+    }
+    out.put(b);
+  }
+
+  /**
+   * Copies the remaining bytes of {@code source} to {@code out}, flushing it as needed.
+   */
+  private static void put(final FileChannel channel, final ByteBuffer out,
+      final ByteBuffer source) throws IOException
+  {
+    if (source.remaining() > out.remaining())
+    {
+      flush(channel, out);
+      if (source.remaining() > out.capacity())
+      {
+        while (source.hasRemaining())
+        {
+          channel.write(source);
+        }
+        return;
+      }
+    }
+    out.put(source);
+  }
+
+  private static void flush(final FileChannel channel, final ByteBuffer out) throws IOException
+  {
+    out.flip();
+    while (out.hasRemaining())
+    {
+      channel.write(out);
+    }
+    out.clear();
+  }
+}
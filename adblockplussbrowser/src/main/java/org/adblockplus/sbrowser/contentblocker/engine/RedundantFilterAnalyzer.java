@@ -0,0 +1,190 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Finds {@code ||host^} filters which are covered by another {@code ||host^} filter for a parent
+ * domain with the same options, like {@code ||ads.example.com^$script} by
+ * {@code ||example.com^$script}. Any request the covered filter matches is matched by the covering
+ * one too, so dropping it doesn't change what gets blocked or allowed. Blocking and exception
+ * filters are handled separately.
+ * <p>
+ * Filters are expected in the form written by {@link FilterCanonicalizer}. All filters get indexed
+ * by {@link #add(String)} in a trie of reversed domain labels before {@link #isRedundant(String)}
+ * can be asked. If there are more {@code ||host^} filters than the index may hold, the analyzer
+ * gives up and reports none of them as redundant, so the result only depends on the filters.
+ */
+final class RedundantFilterAnalyzer
+{
+  private final Node root = new Node();
+  private final int maxFilters;
+  private int indexedFilters = 0;
+  private boolean exhausted = false;
+
+  private static final class Node
+  {
+    HashMap<String, Node> children;
+    // Exception prefix and options of the filters for this domain
+    HashSet<String> keys;
+  }
+
+  /**
+   * @param maxFilters
+   *          number of {@code ||host^} filters after which the analyzer gives up
+   */
+  RedundantFilterAnalyzer(final int maxFilters)
+  {
+    this.maxFilters = maxFilters;
+  }
+
+  public void add(final String filter)
+  {
+    if (this.exhausted)
+    {
+      return;
+    }
+    final int hostStart = getHostStart(filter);
+    final int hostEnd = getHostEnd(filter, hostStart);
+    if (hostEnd == -1)
+    {
+      return;
+    }
+    if (++this.indexedFilters > this.maxFilters)
+    {
+      this.exhausted = true;
+      this.root.children = null;
+      return;
+    }
+
+    Node node = this.root;
+    int labelEnd = hostEnd;
+    while (labelEnd > hostStart)
+    {
+      final int labelStart = filter.lastIndexOf('.', labelEnd - 1) + 1;
+      final String label = filter.substring(Math.max(labelStart, hostStart), labelEnd);
+      if (node.children == null)
+      {
+        node.children = new HashMap<>();
+      }
+      Node child = node.children.get(label);
+      if (child == null)
+      {
+        child = new Node();
+        node.children.put(label, child);
+      }
+      node = child;
+      labelEnd = labelStart - 1;
+    }
+    if (node.keys == null)
+    {
+      node.keys = new HashSet<>();
+    }
+    node.keys.add(getKey(filter, hostStart, hostEnd));
+  }
+
+  /**
+   * @param filter
+   * @return {@code true} if a filter added before covers {@code filter}
+   */
+  public boolean isRedundant(final String filter)
+  {
+    if (this.exhausted)
+    {
+      return false;
+    }
+    final int hostStart = getHostStart(filter);
+    final int hostEnd = getHostEnd(filter, hostStart);
+    if (hostEnd == -1)
+    {
+      return false;
+    }
+
+    final String key = getKey(filter, hostStart, hostEnd);
+    Node node = this.root;
+    int labelEnd = hostEnd;
+    while (labelEnd > hostStart)
+    {
+      // Only filters for parent domains count, the filter itself is in the index too
+      if (node.keys != null && node != this.root && node.keys.contains(key))
+      {
+        return true;
+      }
+      if (node.children == null)
+      {
+        return false;
+      }
+      final int labelStart = filter.lastIndexOf('.', labelEnd - 1) + 1;
+      node = node.children.get(filter.substring(Math.max(labelStart, hostStart), labelEnd));
+      if (node == null)
+      {
+        return false;
+      }
+      labelEnd = labelStart - 1;
+    }
+    return false;
+  }
+
+  /**
+   * @return {@code true} if there were too many filters to analyze, no filter is redundant then
+   */
+  public boolean isExhausted()
+  {
+    return this.exhausted;
+  }
+
+  private static int getHostStart(final String filter)
+  {
+    return filter.startsWith("@@||") ? 4 : filter.startsWith("||") ? 2 : -1;
+  }
+
+  /**
+   * @return the index of the {@code ^} following the host, or {@code -1} if {@code filter} doesn't
+   *         have the form {@code ||host^} or {@code ||host^$options}
+   */
+  private static int getHostEnd(final String filter, final int hostStart)
+  {
+    if (hostStart == -1)
+    {
+      return -1;
+    }
+    for (int i = hostStart; i < filter.length(); i++)
+    {
+      final char c = filter.charAt(i);
+      if (c == '^')
+      {
+        final boolean valid = i > hostStart && filter.charAt(hostStart) != '.'
+            && filter.charAt(i - 1) != '.'
+            && (i + 1 == filter.length() || filter.charAt(i + 1) == '$');
+        return valid ? i : -1;
+      }
+      if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '-' || c == '.'))
+      {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static String getKey(final String filter, final int hostStart, final int hostEnd)
+  {
+    return filter.substring(0, hostStart) + filter.substring(hostEnd + 1);
+  }
+}
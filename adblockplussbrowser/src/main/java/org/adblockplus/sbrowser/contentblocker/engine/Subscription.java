@@ -18,15 +18,15 @@
 package org.adblockplus.sbrowser.contentblocker.engine;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -42,7 +42,6 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import android.text.TextUtils;
 import android.text.format.DateUtils;
@@ -62,12 +61,17 @@ final class Subscription
   public static final String KEY_HTTP_LAST_MODIFIED = "_last_modified";
   public static final String KEY_UPDATE_TIMESTAMP = "_update_timestamp";
   public static final String KEY_TRIED_UPDATE_TIMESTAMP = "_tried_update_timestamp";
+  public static final String KEY_RETRY_COUNT = "_retry_count";
+  public static final String KEY_NEXT_RETRY_TIMESTAMP = "_next_retry_timestamp";
   public static final String KEY_DOWNLOAD_COUNT = "_download_count";
   public static final String KEY_ENABLED = "_enabled";
   public static final String KEY_META_HASH = "_meta_hash";
 
   private static final long MINIMAL_DOWNLOAD_INTERVAL = DateUtils.MINUTE_IN_MILLIS;
+  // Used for failed downloads recorded without a retry timestamp
   private static final long DOWNLOAD_RETRY_INTERVAL = DateUtils.HOUR_IN_MILLIS;
+  private static final long DOWNLOAD_RETRY_BASE_INTERVAL = 5 * DateUtils.MINUTE_IN_MILLIS;
+  private static final long DOWNLOAD_RETRY_MAX_INTERVAL = DateUtils.DAY_IN_MILLIS;
 
   /**
    * List of meta keys that are allowed to import from a downloaded
@@ -176,6 +180,25 @@ final class Subscription
     return parseLong(this.getMeta(KEY_TRIED_UPDATE_TIMESTAMP, "0"));
   }
 
+  /**
+   * @return the number of downloads which failed since the last successful one
+   */
+  public int getRetryCount()
+  {
+    return (int) parseLong(this.getMeta(KEY_RETRY_COUNT, "0"));
+  }
+
+  /**
+   * @return the time after which a failed download may be retried
+   */
+  public long getNextRetryTimestamp()
+  {
+    final String next = this.getMeta(KEY_NEXT_RETRY_TIMESTAMP);
+    return next != null
+        ? parseLong(next)
+        : this.getLastTriedUpdateTimestamp() + DOWNLOAD_RETRY_INTERVAL;
+  }
+
   public boolean shouldUpdate(final boolean forced)
   {
     final long now = System.currentTimeMillis();
@@ -189,7 +212,7 @@ final class Subscription
 
     if (lastTry > lastUpdate)
     {
-      return now - lastTry > DOWNLOAD_RETRY_INTERVAL;
+      return now > this.getNextRetryTimestamp();
     }
     else
     {
@@ -396,44 +419,75 @@ final class Subscription
     }
   }
 
-  public void serializeMetaData(final File metaFile) throws IOException
+  /**
+   * Stages the meta data of this subscription in {@code manifest}, it gets written by the next
+   * {@link SubscriptionManifest#commit()}.
+   *
+   * @param manifest
+   * @throws IOException
+   */
+  public void serializeMetaData(final SubscriptionManifest manifest) throws IOException
   {
     this.putMeta(KEY_META_HASH, createMetaDataHash(this.meta));
-    try (final DataOutputStream metaOut = new DataOutputStream(new BufferedOutputStream(
-        new GZIPOutputStream(new FileOutputStream(metaFile)))))
-    {
-      metaOut.writeUTF(this.url != null ? this.url.toString() : "");
-      metaOut.writeInt(this.meta.size());
-      for (final Entry<String, String> e : this.meta.entrySet())
-      {
-        metaOut.writeUTF(e.getKey());
-        metaOut.writeUTF(e.getValue());
-      }
-    }
+    manifest.put(this.getId(), this.url != null ? this.url.toString() : "", this.meta);
   }
 
   public void serializeFilters(final File filtersFile) throws IOException
   {
-    try (final DataOutputStream filtersOut = new DataOutputStream(new BufferedOutputStream(
-        new GZIPOutputStream(new FileOutputStream(filtersFile)))))
+    writeFilters(filtersFile, this.filters);
+  }
+
+  private static void writeFilters(final File filtersFile, final Collection<String> filters)
+      throws IOException
+  {
+    try (final FilterStore.Writer writer = new FilterStore.Writer(filtersFile))
     {
-      filtersOut.writeInt(this.filters.size());
-      filtersOut.writeUTF(createFilterHash(new ArrayList<>(this.filters)));
-      for (final String s : this.filters)
+      for (final String filter : filters)
       {
-        final byte[] b = s.getBytes(StandardCharsets.UTF_8);
-        filtersOut.writeInt(b.length);
-        filtersOut.write(b);
+        writer.add(filter);
       }
+      writer.finish();
     }
   }
 
-  public void serializeSubscription(final File metaFile, final File filtersFile) throws IOException
+  public void serializeSubscription(final SubscriptionManifest manifest, final File filtersFile)
+      throws IOException
   {
-    this.serializeMetaData(metaFile);
+    this.serializeMetaData(manifest);
     this.serializeFilters(filtersFile);
   }
 
+  public static Subscription deserializeSubscription(final SubscriptionManifest.Entry entry)
+  {
+    final Subscription sub;
+    try
+    {
+      sub = new Subscription(!TextUtils.isEmpty(entry.url) ? new URL(entry.url) : null);
+    }
+    catch (final MalformedURLException e)
+    {
+      Log.e(TAG, "Invalid subscription URL: '" + entry.url + "'", e);
+      return null;
+    }
+    sub.meta.putAll(entry.meta);
+    try
+    {
+      sub.metaDataValid = createMetaDataHash(sub.meta).equals(sub.getMeta(KEY_META_HASH));
+    }
+    catch (final IOException e)
+    {
+      sub.metaDataValid = false;
+    }
+    return sub;
+  }
+
+  /**
+   * Reads a {@code .meta} file, which held the meta data of a single subscription before the
+   * {@link SubscriptionManifest} existed.
+   *
+   * @param metaFile
+   * @return the subscription, or {@code null} if none could be read
+   */
   public static Subscription deserializeSubscription(final File metaFile)
   {
     Subscription sub = null;
@@ -462,7 +516,121 @@ final class Subscription
   public void deserializeFilters(final File filtersFile)
   {
     this.clearFilters();
+    this.readFilters(filtersFile, this.filters);
+  }
+
+  /**
+   * Reads the filters stored in {@code filtersFile} into {@code target}, without keeping them in
+   * this subscription. Files still using the legacy GZIP format get migrated to a
+   * {@link FilterStore}.
+   *
+   * @param filtersFile
+   *          a filter store, or a file in the legacy format
+   * @param target
+   *          receives the filters, even if they don't match their hash
+   */
+  void readFilters(final File filtersFile, final Collection<String> target)
+  {
     this.filtersValid = false;
+    if (FilterStore.isLegacyFormat(filtersFile))
+    {
+      this.readLegacyFilters(filtersFile, target);
+      return;
+    }
+    try
+    {
+      final FilterStore store = FilterStore.open(filtersFile);
+      if (store.getVersion() < FilterStore.FORMAT_VERSION)
+      {
+        // Older stores are hashed over their sorted filters
+        final ArrayList<String> filters = new ArrayList<>(store.size());
+        store.copyFilters(filters);
+        target.addAll(filters);
+        this.filtersValid = createFilterHash(filters).equals(store.getHash());
+        if (this.filtersValid)
+        {
+          migrateFilters(filtersFile, filters);
+        }
+      }
+      else
+      {
+        this.filtersValid = store.verify();
+        store.copyFilters(target);
+      }
+      Log.d(TAG, "Filters valid: " + this.filtersValid);
+    }
+    catch (Throwable t)
+    {
+      // We catch Throwable here in order to load whatever we could retrieve from the filters file
+    }
+  }
+
+  /**
+   * Opens the filters of this subscription without decoding them, checking them like
+   * {@link #readFilters(File, Collection)} does. Files in an older format get migrated first.
+   *
+   * @param filtersFile
+   * @return the store, or {@code null} if {@code filtersFile} couldn't be opened
+   */
+  FilterStore openFilters(final File filtersFile)
+  {
+    this.filtersValid = false;
+    try
+    {
+      if (!FilterStore.isLegacyFormat(filtersFile))
+      {
+        final FilterStore store = FilterStore.open(filtersFile);
+        if (store.getVersion() == FilterStore.FORMAT_VERSION)
+        {
+          this.filtersValid = store.verify();
+          Log.d(TAG, "Filters valid: " + this.filtersValid);
+          return store;
+        }
+      }
+      this.readFilters(filtersFile, new ArrayList<String>());
+      return FilterStore.open(filtersFile);
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Failed to open filters of '" + this.getId() + "'", e);
+      return null;
+    }
+  }
+
+  /**
+   * Migrates {@code filtersFile} if it was written in an older format, so the filters don't need to
+   * be checked with the slower hash of that format on the next rebuild. The notification
+   * subscription holds no filters and is left alone.
+   *
+   * @param filtersFile
+   */
+  void upgradeFilters(final File filtersFile)
+  {
+    if (!filtersFile.exists() || SubscriptionUtils.isNotificationSubscription(this.getId()))
+    {
+      return;
+    }
+    if (!FilterStore.isLegacyFormat(filtersFile))
+    {
+      try
+      {
+        if (FilterStore.open(filtersFile).getVersion() >= FilterStore.FORMAT_VERSION)
+        {
+          return;
+        }
+      }
+      catch (final IOException e)
+      {
+        // Damaged stores get replaced by the next download
+        return;
+      }
+    }
+    this.readFilters(filtersFile, new ArrayList<String>());
+  }
+
+  private void readLegacyFilters(final File filtersFile, final Collection<String> target)
+  {
+    final HashSet<String> filters = new HashSet<>();
     try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
         new FileInputStream(filtersFile)))))
     {
@@ -473,16 +641,35 @@ final class Subscription
         final int length = in.readInt();
         final byte[] b = new byte[length];
         in.readFully(b);
-        this.filters.add(new String(b, StandardCharsets.UTF_8));
+        filters.add(new String(b, StandardCharsets.UTF_8));
       }
-      this.filtersValid = createFilterHash(new ArrayList<>(this.filters)).equals(
-          filtersHash);
-      Log.d(TAG, "Filters valid: " + this.filtersValid);
+      this.filtersValid = createFilterHash(new ArrayList<>(filters)).equals(filtersHash);
+      Log.d(TAG, "Legacy filters valid: " + this.filtersValid);
     }
     catch (Throwable t)
     {
       // We catch Throwable here in order to load whatever we could retrieve from the filters file
     }
+    target.addAll(filters);
+
+    if (this.filtersValid)
+    {
+      migrateFilters(filtersFile, filters);
+    }
+  }
+
+  private static void migrateFilters(final File filtersFile, final Collection<String> filters)
+  {
+    try
+    {
+      writeFilters(filtersFile, filters);
+      Log.d(TAG, "Migrated " + filtersFile.getName() + " to filter store version "
+          + FilterStore.FORMAT_VERSION);
+    }
+    catch (final IOException e)
+    {
+      Log.e(TAG, "Failed to migrate " + filtersFile.getName(), e);
+    }
   }
 
   /**
@@ -492,6 +679,23 @@ final class Subscription
    * @param input
    */
   public Subscription parseLine(String input)
+  {
+    final String filter = parseLine(input, this.meta);
+    if (filter != null)
+    {
+      this.filters.add(filter);
+    }
+    return this;
+  }
+
+  /**
+   * Parses a single line of a subscription, allowed meta data gets added to {@code meta}.
+   *
+   * @param input
+   * @param meta
+   * @return the filter in {@code input}, {@code null} if it doesn't contain a filter
+   */
+  static String parseLine(final String input, final Map<String, String> meta)
   {
     final String line = input.trim();
     if (!line.isEmpty())
@@ -506,7 +710,7 @@ final class Subscription
           final String value = line.substring(colon + 1).trim();
           if (!key.isEmpty() && !value.isEmpty() && ALLOWED_META_KEYS.contains(key))
           {
-            this.meta.put(key, value);
+            meta.put(key, value);
           }
         }
       }
@@ -516,10 +720,10 @@ final class Subscription
       }
       else
       {
-        this.filters.add(line);
+        return line;
       }
     }
-    return this;
+    return null;
   }
 
   public Subscription parseLines(final List<String> lines)
@@ -531,24 +735,73 @@ final class Subscription
     return this;
   }
 
-  public Subscription parseText(final String string)
+  /**
+   * Parses a downloaded subscription while it's being received. Meta data gets added to
+   * {@code meta}, filters are written to a new {@link FilterStore} as they arrive. If the list
+   * has a {@code ! Checksum:} line, it gets verified once the list is complete.
+   *
+   * @param in
+   *          the response body
+   * @param meta
+   * @param filtersFile
+   *          the filter store to create
+   * @return the number of filters written
+   * @throws ChecksumInputStream.MismatchException
+   *           if the list doesn't match its checksum, {@code filtersFile} is incomplete then
+   * @throws IOException
+   */
+  static int parseDownload(final InputStream in, final Map<String, String> meta,
+      final File filtersFile) throws IOException
   {
-    try (final BufferedReader r = new BufferedReader(new StringReader(string)))
+    final ChecksumInputStream checksum = new ChecksumInputStream(in);
+    try (final FilterStore.Writer writer = new FilterStore.Writer(filtersFile);
+         final BufferedReader r = new BufferedReader(new InputStreamReader(checksum,
+             StandardCharsets.UTF_8)))
     {
       for (String line = r.readLine(); line != null; line = r.readLine())
       {
-        this.parseLine(line);
+        final String filter = parseLine(line, meta);
+        if (filter != null)
+        {
+          writer.add(filter);
+        }
       }
+      checksum.verify();
+      if (checksum.getExpected() != null)
+      {
+        Log.d(TAG, "Verified checksum of " + writer.size() + " filters in "
+            + checksum.getDigestMillis() + " ms");
+      }
+      writer.finish();
+      return writer.size();
     }
-    catch (final IOException e)
-    {
-      // ignored ... we're reading from a String
-    }
-    return this;
   }
 
-  boolean updateSubscription(final int responseCode, final String text,
-      final Map<String, String> httpHeaders, final File metaFile, final File filtersFile)
+  private void clearRetryState()
+  {
+    this.meta.remove(KEY_RETRY_COUNT);
+    this.meta.remove(KEY_NEXT_RETRY_TIMESTAMP);
+  }
+
+  /**
+   * Applies the result of a download. The changed meta data still needs to be serialized by the
+   * caller.
+   *
+   * @param responseCode
+   * @param response
+   *          for filter lists the {@link FilterStore} written by
+   *          {@link #parseDownload(InputStream, Map, File)}, the raw response body otherwise. Gets
+   *          moved to {@code filtersFile} if the filters changed.
+   * @param responseMeta
+   *          meta data parsed from the response
+   * @param httpHeaders
+   * @param filtersFile
+   * @return {@code true} if the filters changed
+   * @throws IOException
+   */
+  boolean updateSubscription(final int responseCode, final File response,
+      final Map<String, String> responseMeta, final Map<String, String> httpHeaders,
+      final File filtersFile)
       throws IOException
   {
     boolean filtersChanged = false;
@@ -556,23 +809,36 @@ final class Subscription
     {
       // Not changed, update update timestamp only
       this.meta.put(KEY_UPDATE_TIMESTAMP, Long.toString(System.currentTimeMillis()));
+      this.clearRetryState();
     }
     else
     {
-      if (responseCode != 200 || text == null)
+      if (responseCode != 200 || response == null)
       {
-        // We tried, but we failed
-        this.meta.put(KEY_TRIED_UPDATE_TIMESTAMP, Long.toString(System.currentTimeMillis()));
+        // We tried, but we failed. Retry later, backing off further with every failure
+        final long now = System.currentTimeMillis();
+        final int retryCount = this.getRetryCount();
+        this.meta.put(KEY_TRIED_UPDATE_TIMESTAMP, Long.toString(now));
+        this.meta.put(KEY_RETRY_COUNT, Integer.toString(retryCount + 1));
+        this.meta.put(KEY_NEXT_RETRY_TIMESTAMP, Long.toString(now + Backoff.delay(retryCount,
+            DOWNLOAD_RETRY_BASE_INTERVAL, DOWNLOAD_RETRY_MAX_INTERVAL)));
       }
       else
       {
+        this.clearRetryState();
         if (SubscriptionUtils.isNotificationSubscription(getId()))
         {
+          final String text;
+          try (final InputStream in = new FileInputStream(response))
+          {
+            text = Engine.readFileAsString(in);
+          }
           this.meta.put(KEY_UPDATE_TIMESTAMP, Long.toString(System.currentTimeMillis()));
           this.meta.put(KEY_DOWNLOAD_COUNT, Long.toString(this.getDownloadCount() + 1));
           this.meta.put(KEY_VERSION, Notification.getNotificationVersion(text));
           Notification.persistNotificationData(filtersFile, text);
-          this.serializeMetaData(metaFile);
+          this.filtersValid = true;
+          this.metaDataValid = true;
           return false;
         }
         // Update succeeded, update filters
@@ -601,20 +867,20 @@ final class Subscription
             this.meta.remove(KEY_HTTP_LAST_MODIFIED);
           }
           this.meta.put(KEY_DOWNLOAD_COUNT, Long.toString(this.getDownloadCount() + 1));
+        }
 
-          this.clearFilters();
-          this.parseText(text);
+        this.clearFilters();
+        if (responseMeta != null)
+        {
+          this.meta.putAll(responseMeta);
         }
+        AtomicFiles.move(response, filtersFile);
+        // The downloaded filters replaced whatever was damaged before
+        this.filtersValid = true;
+        this.metaDataValid = true;
       }
     }
 
-    this.serializeMetaData(metaFile);
-    if (filtersChanged)
-    {
-      this.serializeFilters(filtersFile);
-      this.clearFilters();
-    }
-
     return filtersChanged;
   }
 }
@@ -0,0 +1,390 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Append only log holding the meta data of all subscriptions.
+ * <p>
+ * Changes are staged by {@link #put(String, String, Map)} and {@link #remove(String)} and written
+ * together by {@link #commit()}, which appends them to the log and syncs it once. When the log has
+ * grown well beyond the size of its live records it gets compacted, by writing all live records to
+ * a new file which then replaces the log.
+ * <p>
+ * The file starts with a magic number and the format version, followed by records of the form
+ * {@code int length, payload, int CRC32 of payload}. The payload is an operation byte and the
+ * subscription id, followed by the URL and the meta data for {@code PUT}. Loading stops at the
+ * first incomplete or damaged record, the following commit truncates the log there. Records
+ * behind a damaged header are still loaded, the following commit compacts the log.
+ */
+final class SubscriptionManifest
+{
+  private static final String TAG = SubscriptionManifest.class.getSimpleName();
+  private static final int MAGIC = 0x41425053; // "ABPS"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_OVERHEAD = 8;
+  private static final int MAX_RECORD_SIZE = 1024 * 1024;
+  private static final long COMPACTION_THRESHOLD = 64 * 1024;
+  private static final byte OP_PUT = 1;
+  private static final byte OP_REMOVE = 2;
+
+  private final File file;
+  private final boolean existed;
+  // Latest PUT payload of every subscription, in the order they were first added
+  private final LinkedHashMap<String, byte[]> records = new LinkedHashMap<>();
+  private final ArrayList<byte[]> pending = new ArrayList<>();
+  private long logLength = 0;
+  private boolean damaged = false;
+
+  /**
+   * Meta data of a single subscription.
+   */
+  static final class Entry
+  {
+    final String url;
+    final Map<String, String> meta;
+
+    private Entry(final String url, final Map<String, String> meta)
+    {
+      this.url = url;
+      this.meta = meta;
+    }
+  }
+
+  private SubscriptionManifest(final File file, final boolean existed)
+  {
+    this.file = file;
+    this.existed = existed;
+  }
+
+  /**
+   * Reads the manifest with a single read. A missing or damaged file results in a manifest holding
+   * whatever could be read.
+   *
+   * @param file
+   * @return the manifest
+   */
+  public static SubscriptionManifest open(final File file)
+  {
+    final SubscriptionManifest manifest = new SubscriptionManifest(file, file.exists());
+    if (!manifest.existed)
+    {
+      return manifest;
+    }
+    try
+    {
+      final byte[] data = new byte[(int) file.length()];
+      try (final DataInputStream in = new DataInputStream(new FileInputStream(file)))
+      {
+        in.readFully(data);
+      }
+      manifest.parse(data);
+    }
+    catch (final IOException e)
+    {
+      Log.e(TAG, "Failed to read " + file, e);
+    }
+    Log.d(TAG, "Loaded " + manifest.records.size() + " subscriptions, log size "
+        + manifest.logLength);
+    return manifest;
+  }
+
+  private void parse(final byte[] data) throws IOException
+  {
+    if (data.length < HEADER_SIZE)
+    {
+      Log.w(TAG, "Truncated manifest, starting over");
+      this.damaged = true;
+      return;
+    }
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    final int magic = in.readInt();
+    final int version = in.readInt();
+    if (magic != MAGIC || version != FORMAT_VERSION)
+    {
+      // Every record is checked by its own CRC, so they can be read without the header
+      Log.w(TAG, "Damaged manifest header, recovering records");
+      this.damaged = true;
+    }
+    long offset = HEADER_SIZE;
+    try
+    {
+      for (;;)
+      {
+        final int length = in.readInt();
+        if (length <= 0 || length > MAX_RECORD_SIZE || length > data.length - offset)
+        {
+          throw new IOException("Invalid record length: " + length);
+        }
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        if (in.readInt() != crc(payload))
+        {
+          throw new IOException("Checksum mismatch");
+        }
+        this.apply(payload);
+        offset += RECORD_OVERHEAD + length;
+      }
+    }
+    catch (final EOFException e)
+    {
+      if (offset != data.length)
+      {
+        Log.w(TAG, "Ignoring incomplete record at " + offset);
+      }
+    }
+    catch (final IOException e)
+    {
+      Log.w(TAG, "Ignoring damaged records after " + offset + ": " + e.getMessage());
+    }
+    // The next commit compacts a damaged log, which rewrites the header
+    this.logLength = this.damaged ? 0 : offset;
+  }
+
+  private void apply(final byte[] payload) throws IOException
+  {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+    final byte op = in.readByte();
+    final String id = in.readUTF();
+    if (op == OP_PUT)
+    {
+      this.records.put(id, payload);
+    }
+    else if (op == OP_REMOVE)
+    {
+      this.records.remove(id);
+    }
+    else
+    {
+      throw new IOException("Unknown operation: " + op);
+    }
+  }
+
+  /**
+   * @return {@code true} if the manifest file existed when it was opened
+   */
+  public boolean existed()
+  {
+    return this.existed;
+  }
+
+  /**
+   * @return {@code true} if the manifest file was too short or had a damaged header, its entries
+   *         are whatever records could be recovered
+   */
+  public boolean isDamaged()
+  {
+    return this.damaged;
+  }
+
+  /**
+   * @return the meta data of all subscriptions, mapped by their id
+   */
+  public synchronized Map<String, Entry> getEntries()
+  {
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    for (final Map.Entry<String, byte[]> e : this.records.entrySet())
+    {
+      try
+      {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(e.getValue()));
+        in.readByte();
+        in.readUTF();
+        final String url = in.readUTF();
+        final int numMetaEntries = in.readInt();
+        final HashMap<String, String> meta = new HashMap<>();
+        for (int i = 0; i < numMetaEntries; i++)
+        {
+          final String key = in.readUTF();
+          meta.put(key, in.readUTF());
+        }
+        entries.put(e.getKey(), new Entry(url, Collections.unmodifiableMap(meta)));
+      }
+      catch (final IOException x)
+      {
+        Log.e(TAG, "Failed to decode meta data of '" + e.getKey() + "'", x);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Stages the meta data of a subscription, replacing any previous version.
+   */
+  public synchronized void put(final String id, final String url, final Map<String, String> meta)
+  {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final DataOutputStream out = new DataOutputStream(bytes))
+    {
+      out.writeByte(OP_PUT);
+      out.writeUTF(id);
+      out.writeUTF(url);
+      out.writeInt(meta.size());
+      for (final Map.Entry<String, String> e : meta.entrySet())
+      {
+        out.writeUTF(e.getKey());
+        out.writeUTF(e.getValue());
+      }
+    }
+    catch (final IOException e)
+    {
+      // Can't happen for an in-memory stream
+      throw new IllegalStateException(e);
+    }
+    final byte[] payload = bytes.toByteArray();
+    this.records.put(id, payload);
+    this.pending.add(payload);
+  }
+
+  /**
+   * Stages the removal of a subscription.
+   */
+  public synchronized void remove(final String id)
+  {
+    if (this.records.remove(id) == null)
+    {
+      return;
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (final DataOutputStream out = new DataOutputStream(bytes))
+    {
+      out.writeByte(OP_REMOVE);
+      out.writeUTF(id);
+    }
+    catch (final IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    this.pending.add(bytes.toByteArray());
+  }
+
+  /**
+   * Writes all staged changes, compacting the log if needed.
+   *
+   * @throws IOException
+   */
+  public synchronized void commit() throws IOException
+  {
+    if (this.pending.isEmpty())
+    {
+      return;
+    }
+    long pendingLength = 0;
+    for (final byte[] payload : this.pending)
+    {
+      pendingLength += RECORD_OVERHEAD + payload.length;
+    }
+    long liveLength = HEADER_SIZE;
+    for (final byte[] payload : this.records.values())
+    {
+      liveLength += RECORD_OVERHEAD + payload.length;
+    }
+
+    if (this.logLength == 0
+        || this.logLength + pendingLength > Math.max(COMPACTION_THRESHOLD, 2 * liveLength))
+    {
+      this.compact();
+    }
+    else
+    {
+      try (final RandomAccessFile raf = new RandomAccessFile(this.file, "rw"))
+      {
+        // Drops a damaged tail found while loading
+        raf.setLength(this.logLength);
+        raf.seek(this.logLength);
+        raf.write(frame(this.pending, pendingLength));
+        raf.getFD().sync();
+      }
+      this.logLength += pendingLength;
+    }
+    this.pending.clear();
+  }
+
+  private void compact() throws IOException
+  {
+    long length = HEADER_SIZE;
+    final FileOutputStream fileOut = AtomicFiles.startWrite(this.file);
+    boolean written = false;
+    try
+    {
+      final DataOutputStream out = new DataOutputStream(fileOut);
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      long recordsLength = 0;
+      for (final byte[] payload : this.records.values())
+      {
+        recordsLength += RECORD_OVERHEAD + payload.length;
+      }
+      out.write(frame(this.records.values(), recordsLength));
+      out.flush();
+      AtomicFiles.finishWrite(fileOut, this.file);
+      written = true;
+      length += recordsLength;
+    }
+    finally
+    {
+      if (!written)
+      {
+        AtomicFiles.abortWrite(fileOut, this.file);
+      }
+    }
+    Log.d(TAG, "Compacted manifest from " + this.logLength + " to " + length + " bytes");
+    this.logLength = length;
+  }
+
+  private static byte[] frame(final Iterable<byte[]> payloads, final long length)
+      throws IOException
+  {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) length);
+    final DataOutputStream out = new DataOutputStream(bytes);
+    for (final byte[] payload : payloads)
+    {
+      out.writeInt(payload.length);
+      out.write(payload);
+      out.writeInt(crc(payload));
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static int crc(final byte[] payload)
+  {
+    final CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    return (int) crc.getValue();
+  }
+}
@@ -24,11 +24,20 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.adblockplus.sbrowser.contentblocker.engine.Subscription.Type;
 import org.adblockplus.sbrowser.contentblocker.util.SubscriptionUtils;
@@ -44,15 +53,31 @@ final class Subscriptions
   private static final String TAG = Subscriptions.class.getSimpleName();
   private static final String[] USER_SUBSCRIPTIONS =
   { Engine.USER_FILTERS_TITLE, Engine.USER_EXCEPTIONS_TITLE };
-  // Filters that begin with '|$' , '||$' , '@@|$' or '@@||$'
-  // See https://issues.adblockplus.org/ticket/4772
-  private static final String UNSUPPORTED_FILTERS_REGEX =  "^(\\|\\$|\\|\\|\\$|@@\\|\\$|@@\\|\\|\\$).*";
+  private static final String MERGED_FILTERS_FILE = "merged_filters.idx";
+  private static final String MANIFEST_FILE = "subscriptions.manifest";
+  private static final int LOADER_THREADS = 4;
+  private static final int DECODE_THREADS =
+      Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+  // Part of the output fingerprint, needs to change whenever the same filters would be written
+  // differently, e.g. when the headers or the sanitizer rules change
+  private static final String OUTPUT_FORMAT = "! Output format: 4";
+  private static final String PASSTHROUGH_OUTPUT_FORMAT = "! Passthrough output format: 1";
+  // Indexing takes about 150 ms for 50000 host filters on a desktop, three times the number in
+  // EasyList, and more than any combination of the offered subscriptions
+  private static final int REDUNDANCY_CHECK_MAX_FILTERS = 200000;
   private final HashMap<String, Subscription> subscriptions = new HashMap<>();
 
   private final Engine engine;
   private final File subscriptionFolder;
   private final File cacheFolder;
   private final boolean wasUninitialized;
+  private MergedFilters mergedFilters = null;
+  private final FilterSanitizer sanitizer = FilterSanitizer.createDefault();
+  private final FilterCanonicalizer canonicalizer = new FilterCanonicalizer();
+  private int writtenFilterCount = 0;
+  private int decodeThreads = DECODE_THREADS;
+  private boolean passthroughMerge = false;
+  private SubscriptionManifest manifest;
 
   private Subscriptions(final Engine engine, final File appFolder, final File cacheFolder)
   {
@@ -67,7 +92,57 @@ final class Subscriptions
     return this.wasUninitialized;
   }
 
-  public File createAndWriteFile() throws IOException
+  /**
+   * Computes the fingerprint of the file {@link #createAndWriteFile(Collection)} would write,
+   * without writing it. Subscriptions with invalid data get enqueued for download.
+   *
+   * @param extraFilters
+   *          filters appended to the merged filters, like the whitelisted websites
+   * @return the fingerprint
+   * @throws IOException
+   */
+  public String computeOutputFingerprint(final Collection<String> extraFilters) throws IOException
+  {
+    final FilterFingerprint fingerprint;
+    if (this.passthroughMerge)
+    {
+      // Filter stores only change along with their hash
+      fingerprint = new FilterFingerprint();
+      for (final Subscription s : this.getMergedSubscriptions())
+      {
+        fingerprint.add(s.getId() + " " + readStoreHash(this.getFiltersFile(s)));
+      }
+      fingerprint.add(PASSTHROUGH_OUTPUT_FORMAT);
+    }
+    else
+    {
+      fingerprint = this.updateMergedFilters().getFingerprint();
+    }
+    for (final Subscription s : this.subscriptions.values())
+    {
+      if ((!s.isMetaDataValid() || !s.isFiltersValid()) && s.getURL() != null)
+      {
+        this.engine.enqueueDownload(s, true, false, Downloader.Priority.BACKGROUND);
+      }
+    }
+
+    for (final String filter : extraFilters)
+    {
+      fingerprint.add(filter);
+    }
+    fingerprint.add(OUTPUT_FORMAT);
+    return fingerprint.toString();
+  }
+
+  /**
+   * @return the number of filters in the file last written by {@link #createAndWriteFile(Collection)}
+   */
+  public int getWrittenFilterCount()
+  {
+    return this.writtenFilterCount;
+  }
+
+  public File createAndWriteFile(final Collection<String> extraFilters) throws IOException
   {
     for (;;)
     {
@@ -76,7 +151,7 @@ final class Subscriptions
       if (!file.exists())
       {
         Log.d(TAG, "Writing filters to " + file);
-        this.writeFile(file);
+        this.writeFile(file, extraFilters);
         return file;
       }
     }
@@ -116,10 +191,10 @@ final class Subscriptions
       if (enabled != sub.isEnabled())
       {
         sub.setEnabled(enabled);
-        sub.serializeMetaData(this.getMetaFile(sub));
+        sub.serializeMetaData(this.manifest);
         if (enabled)
         {
-          this.engine.enqueueDownload(sub, true, false);
+          this.engine.enqueueDownload(sub, true, false, Downloader.Priority.USER);
         }
 
         this.engine.subscriptionStateChanged();
@@ -145,14 +220,13 @@ final class Subscriptions
     return filtersFile;
   }
 
-  File getMetaFile(final Subscription sub)
-  {
-    return new File(getFiltersFile(sub).getAbsolutePath() + ".meta");
-  }
-
+  /**
+   * Writes the filters of {@code sub} and stages its meta data, which gets written by the next
+   * {@link #commitMetaData()}.
+   */
   void persistSubscription(final Subscription sub) throws IOException
   {
-    sub.serializeSubscription(this.getMetaFile(sub), this.getFiltersFile(sub));
+    sub.serializeSubscription(this.manifest, this.getFiltersFile(sub));
   }
 
   void persistSubscriptions() throws IOException
@@ -161,53 +235,288 @@ final class Subscriptions
     {
       this.persistSubscription(sub);
     }
+    this.commitMetaData();
   }
 
   /**
-   * This method combines all currently listed and enabled subscriptions into
-   * one text file.
+   * Writes all meta data changes staged since the last call at once.
    *
-   * @param output
    * @throws IOException
    */
-  private void writeFile(final File output) throws IOException
+  void commitMetaData() throws IOException
   {
-    final HashSet<String> filters = new HashSet<>();
+    this.manifest.commit();
+  }
+
+  private static FilterStore openStore(final File filtersFile)
+  {
+    try
+    {
+      return FilterStore.open(filtersFile);
+    }
+    catch (final IOException e)
+    {
+      return null;
+    }
+  }
+
+  private static boolean isValidStore(final File filtersFile)
+  {
+    final FilterStore store = openStore(filtersFile);
+    return store != null && store.verify();
+  }
+
+  private static String readStoreHash(final File filtersFile)
+  {
+    final FilterStore store = openStore(filtersFile);
+    return store != null ? store.getHash() : "";
+  }
+
+  private static void readStoreFilters(final File filtersFile, final Collection<String> filters)
+  {
+    final FilterStore store = openStore(filtersFile);
+    if (store != null)
+    {
+      store.copyFilters(filters);
+    }
+  }
+
+  /**
+   * @return the enabled subscriptions whose filters get merged, sorted by ID
+   */
+  private List<Subscription> getMergedSubscriptions()
+  {
+    final ArrayList<String> ids = new ArrayList<>();
     for (final Subscription s : this.subscriptions.values())
     {
       if (s.isEnabled() && !SubscriptionUtils.isNotificationSubscription(s.getId()))
       {
-        Log.d(TAG, "Adding filters for '" + s.getId() + "'");
-        s.deserializeFilters(this.getFiltersFile(s));
-        s.copyFilters(filters);
-        s.clearFilters();
+        ids.add(s.getId());
       }
-      if ((!s.isMetaDataValid() || !s.isFiltersValid()) && s.getURL() != null)
+    }
+    Collections.sort(ids);
+    final ArrayList<Subscription> subs = new ArrayList<>(ids.size());
+    for (final String id : ids)
+    {
+      subs.add(this.subscriptions.get(id));
+    }
+    return subs;
+  }
+
+  /**
+   * Brings the merged filters in line with the currently enabled subscriptions. Subscriptions that
+   * got enabled or disabled since the last call are merged or removed one by one, all filters only
+   * get merged again if the merged filters don't match the filter stores on disk.
+   *
+   * @return the merged filters
+   */
+  private MergedFilters updateMergedFilters()
+  {
+    if (this.mergedFilters == null)
+    {
+      this.mergedFilters = MergedFilters.load(new File(this.subscriptionFolder,
+          MERGED_FILTERS_FILE));
+    }
+    final MergedFilters merged = this.mergedFilters;
+
+    final HashMap<String, Subscription> enabled = new HashMap<>();
+    for (final Subscription s : this.getMergedSubscriptions())
+    {
+      enabled.put(s.getId(), s);
+    }
+
+    boolean consistent = true;
+    final ArrayList<String> disabled = new ArrayList<>();
+    for (final Entry<String, String> e : merged.getSources().entrySet())
+    {
+      final Subscription sub = this.subscriptions.get(e.getKey());
+      if (sub == null || !e.getValue().equals(readStoreHash(this.getFiltersFile(sub))))
+      {
+        consistent = false;
+        break;
+      }
+      if (!enabled.containsKey(e.getKey()))
       {
-        this.engine.enqueueDownload(s, true, false);
+        disabled.add(e.getKey());
       }
     }
 
+    if (!consistent)
+    {
+      Log.d(TAG, "Merged filters out of sync, merging all subscriptions");
+      merged.clear();
+      disabled.clear();
+    }
+
+    for (final String id : disabled)
+    {
+      Log.d(TAG, "Removing filters for '" + id + "'");
+      final ArrayList<String> filters = new ArrayList<>();
+      readStoreFilters(this.getFiltersFile(this.subscriptions.get(id)), filters);
+      merged.removeSource(id, filters);
+    }
+
+    // Decoding runs in parallel, merging in the order of the IDs to keep the output deterministic
+    final ArrayList<String> added = new ArrayList<>();
+    for (final String id : enabled.keySet())
+    {
+      if (!merged.hasSource(id))
+      {
+        added.add(id);
+      }
+    }
+    Collections.sort(added);
+    final ArrayList<FiltersReader> readers = new ArrayList<>(added.size());
+    for (final String id : added)
+    {
+      final Subscription s = enabled.get(id);
+      readers.add(new FiltersReader(s, this.getFiltersFile(s)));
+    }
+    for (final FiltersReader reader : runAll(readers, this.decodeThreads))
+    {
+      Log.d(TAG, "Adding filters for '" + reader.sub.getId() + "'");
+      merged.addSource(reader.sub.getId(), reader.hash, reader.filters);
+    }
+
+    return merged;
+  }
+
+  /**
+   * This method combines all currently listed and enabled subscriptions into
+   * one text file. Filters are written in their canonical form, see
+   * {@link FilterCanonicalizer}, and filters which only differ in the way they are written are
+   * written once. Filters covered by other filters are dropped, see
+   * {@link RedundantFilterAnalyzer}, and element hiding filters get grouped by
+   * {@link ElementHidingGrouper}.
+   *
+   * @param output
+   * @param extraFilters
+   *          written after the merged filters, without being sanitized
+   * @throws IOException
+   */
+  private void writeFile(final File output, final Collection<String> extraFilters)
+      throws IOException
+  {
+    if (this.passthroughMerge)
+    {
+      this.writePassthroughFile(output, extraFilters);
+      return;
+    }
+
+    final MergedFilters merged = this.updateMergedFilters();
+    final Set<String> filters = merged.getFilters();
+    // Canonical forms written so far which aren't part of the merged filters themselves
+    final HashSet<String> rewritten = new HashSet<>();
+    final ArrayList<String> canonicals = new ArrayList<>(filters.size());
+    final RedundantFilterAnalyzer analyzer =
+        new RedundantFilterAnalyzer(REDUNDANCY_CHECK_MAX_FILTERS);
+    final ElementHidingGrouper grouper = new ElementHidingGrouper();
+    int count = 0;
+    int duplicates = 0;
+    int redundant = 0;
+
     try (final BufferedWriter w = new BufferedWriter(
         new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)))
     {
-      Log.d(TAG, "Writing " + filters.size() + " filters");
+      Log.d(TAG, "Writing " + merged.size() + " filters");
       Engine.writeFilterHeaders(w);
       for (final String filter : filters)
       {
-        // This is a temporary fix to not write filters that might crash Samsung Internet
-        // See https://issues.adblockplus.org/ticket/4772
-        if (!filter.matches(UNSUPPORTED_FILTERS_REGEX))
+        if (!this.sanitizer.accept(filter))
         {
-          w.write(filter);
-          w.write('\n');
+          continue;
         }
-        else
+        final String canonical = this.canonicalizer.canonicalize(filter);
+        // Merged filters are distinct, so only rewritten filters can be duplicates
+        if (canonical != filter && (filters.contains(canonical) || !rewritten.add(canonical)))
         {
-          Log.d(TAG, "Ignoring unsupported filter: " + filter);
+          duplicates++;
+          continue;
         }
+        canonicals.add(canonical);
+        analyzer.add(canonical);
+      }
+
+      for (int i = 0; i < canonicals.size(); i++)
+      {
+        final String canonical = canonicals.get(i);
+        if (analyzer.isRedundant(canonical))
+        {
+          redundant++;
+        }
+        else if (!grouper.add(canonical))
+        {
+          w.write(canonical);
+          w.write('\n');
+          count++;
+        }
+      }
+      count += grouper.write(w);
+      for (final String filter : extraFilters)
+      {
+        w.write(filter);
+        w.write('\n');
+      }
+      count += extraFilters.size();
+    }
+    this.writtenFilterCount = count;
+    this.sanitizer.logAndResetRejections();
+    Log.d(TAG, "Canonicalized " + this.canonicalizer.getRewritten() + " filters, removed "
+        + duplicates + " duplicates");
+    this.canonicalizer.resetRewritten();
+    if (analyzer.isExhausted())
+    {
+      Log.w(TAG, "Skipped redundant filter check, more than " + REDUNDANCY_CHECK_MAX_FILTERS
+          + " host filters");
+    }
+    Log.d(TAG, "Removed " + redundant + " redundant filters");
+
+    try
+    {
+      merged.save();
+    }
+    catch (final IOException e)
+    {
+      Log.e(TAG, "Failed to save merged filters", e);
+    }
+  }
+
+  /**
+   * Writes the filters of all enabled subscriptions using {@link PassthroughMerger}, without
+   * updating the merged filters.
+   */
+  private void writePassthroughFile(final File output, final Collection<String> extraFilters)
+      throws IOException
+  {
+    final ArrayList<FilterStore> stores = new ArrayList<>();
+    for (final Subscription s : this.getMergedSubscriptions())
+    {
+      final FilterStore store = s.openFilters(this.getFiltersFile(s));
+      if (store != null)
+      {
+        stores.add(store);
       }
     }
+    this.writtenFilterCount = new PassthroughMerger(stores).write(output, this.sanitizer,
+        extraFilters);
+    this.sanitizer.logAndResetRejections();
+  }
+
+  /**
+   * Enables merging without decoding filters, see {@link PassthroughMerger}. Uses less memory,
+   * but writes a larger filter file.
+   */
+  public void setPassthroughMerge(final boolean passthroughMerge)
+  {
+    this.passthroughMerge = passthroughMerge;
+  }
+
+  /**
+   * Sets the number of threads decoding subscriptions while the merged filters get updated.
+   */
+  void setDecodeThreads(final int threads)
+  {
+    this.decodeThreads = threads;
   }
 
   public Subscription add(final Subscription sub)
@@ -223,37 +532,255 @@ final class Subscriptions
 
   public boolean remove(final String id)
   {
-    return this.subscriptions.remove(id) != null;
+    final Subscription sub = this.subscriptions.remove(id);
+    this.manifest.remove(id);
+    if (sub != null && this.mergedFilters != null && this.mergedFilters.hasSource(id))
+    {
+      final ArrayList<String> filters = new ArrayList<>();
+      readStoreFilters(this.getFiltersFile(sub), filters);
+      this.mergedFilters.removeSource(id, filters);
+    }
+    return sub != null;
   }
 
   public static Subscriptions initialize(final Engine engine, final File appFolder,
       final File cacheFolder)
+  {
+    return initialize(engine, appFolder, cacheFolder, LOADER_THREADS);
+  }
+
+  /**
+   * @param engine
+   * @param appFolder
+   * @param cacheFolder
+   * @param loaderThreads
+   *          number of subscriptions loaded at the same time
+   * @return the loaded subscriptions
+   */
+  static Subscriptions initialize(final Engine engine, final File appFolder,
+      final File cacheFolder, final int loaderThreads)
   {
     final Subscriptions subs = new Subscriptions(engine, appFolder, cacheFolder);
 
     subs.subscriptionFolder.mkdirs();
     subs.cacheFolder.mkdirs();
 
-    final File[] files = subs.subscriptionFolder.listFiles();
-    for (File f : files)
+    recoverInterruptedWrites(subs.subscriptionFolder);
+
+    final long start = System.currentTimeMillis();
+    subs.manifest = SubscriptionManifest.open(new File(subs.subscriptionFolder, MANIFEST_FILE));
+    final Map<String, SubscriptionManifest.Entry> entries = subs.manifest.getEntries();
+    // The .meta files are only deleted once the manifest was written, so they are still there if
+    // it got damaged before
+    final boolean legacy = !subs.manifest.existed()
+        || (subs.manifest.isDamaged() && entries.isEmpty());
+    final List<File> metaFiles = legacy
+        ? listLegacyMetaFiles(subs.subscriptionFolder)
+        : Collections.<File>emptyList();
+    final ArrayList<SubscriptionLoader> loaders = new ArrayList<>();
+    for (final SubscriptionManifest.Entry entry : entries.values())
     {
-      if (f.getName().endsWith(".sub"))
+      loaders.add(new SubscriptionLoader(subs, entry, null));
+    }
+    for (final File metaFile : metaFiles)
+    {
+      loaders.add(new SubscriptionLoader(subs, null, metaFile));
+    }
+
+    final List<Subscription> loaded = runAll(loaders, loaderThreads);
+    for (final Subscription sub : loaded)
+    {
+      subs.subscriptions.put(sub.getId(), sub);
+    }
+    Log.d(TAG, "Loaded " + loaded.size() + " subscriptions in "
+        + (System.currentTimeMillis() - start) + "ms");
+
+    if ((legacy || subs.manifest.isDamaged()) && !loaded.isEmpty())
+    {
+      subs.migrateLegacyMetaFiles(metaFiles);
+    }
+
+    subs.createUserSubscriptions();
+
+    return subs;
+  }
+
+  /**
+   * Cleans up writes to {@code folder} which were interrupted by the process dying. Filter stores
+   * which were written completely, but not renamed, are kept if there is no previous version.
+   *
+   * @param folder
+   * @return the number of recovered files
+   */
+  static int recoverInterruptedWrites(final File folder)
+  {
+    return AtomicFiles.recover(folder, new AtomicFiles.Validator()
+    {
+      @Override
+      public boolean isComplete(final File temp)
+      {
+        return temp.getName().endsWith(".sub" + AtomicFiles.TEMP_SUFFIX) && isValidStore(temp);
+      }
+    });
+  }
+
+  /**
+   * @return the {@code .meta} files used before the manifest existed, ordered by name
+   */
+  private static List<File> listLegacyMetaFiles(final File folder)
+  {
+    final ArrayList<File> metaFiles = new ArrayList<>();
+    final File[] files = folder.listFiles();
+    if (files != null)
+    {
+      for (final File f : files)
       {
         final File metaFile = new File(f.getAbsolutePath() + ".meta");
-        if (metaFile.exists())
+        if (f.getName().endsWith(".sub") && metaFile.exists())
+        {
+          metaFiles.add(metaFile);
+        }
+      }
+    }
+    Collections.sort(metaFiles);
+    return metaFiles;
+  }
+
+  /**
+   * Moves the meta data of all loaded subscriptions into the manifest, the {@code .meta} files only
+   * get deleted once it was written. A damaged manifest gets rewritten the same way.
+   */
+  private void migrateLegacyMetaFiles(final List<File> metaFiles)
+  {
+    try
+    {
+      for (final Subscription sub : this.subscriptions.values())
+      {
+        sub.serializeMetaData(this.manifest);
+      }
+      this.commitMetaData();
+    }
+    catch (final IOException e)
+    {
+      Log.e(TAG, "Failed to migrate meta data, keeping .meta files", e);
+      return;
+    }
+    for (final File metaFile : metaFiles)
+    {
+      if (!metaFile.delete())
+      {
+        Log.w(TAG, "Failed to delete " + metaFile);
+      }
+    }
+    Log.d(TAG, "Migrated " + this.subscriptions.size() + " subscriptions to the manifest");
+  }
+
+  /**
+   * Runs tasks like {@link SubscriptionLoader} on a bounded thread pool. The result keeps the order
+   * of {@code tasks}, tasks failing or returning {@code null} are skipped.
+   *
+   * @param tasks
+   * @param threads
+   *          maximum number of threads to use
+   * @return the results of the tasks
+   */
+  private static <T> List<T> runAll(final List<? extends Callable<T>> tasks, final int threads)
+  {
+    final ArrayList<T> results = new ArrayList<>(tasks.size());
+    if (tasks.isEmpty())
+    {
+      return results;
+    }
+    if (threads <= 1 || tasks.size() == 1)
+    {
+      // Not worth a thread pool
+      for (final Callable<T> task : tasks)
+      {
+        try
+        {
+          final T result = task.call();
+          if (result != null)
+          {
+            results.add(result);
+          }
+        }
+        catch (final Exception e)
+        {
+          Log.e(TAG, "Failed to run " + task, e);
+        }
+      }
+      return results;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(
+        Math.min(threads, tasks.size()));
+    try
+    {
+      final List<Future<T>> futures = executor.invokeAll(tasks);
+      for (int i = 0; i < futures.size(); i++)
+      {
+        try
         {
-          final Subscription sub = Subscription.deserializeSubscription(metaFile);
-          if (sub != null)
+          final T result = futures.get(i).get();
+          if (result != null)
           {
-            subs.subscriptions.put(sub.getId(), sub);
+            results.add(result);
           }
         }
+        catch (final ExecutionException e)
+        {
+          Log.e(TAG, "Failed to run " + tasks.get(i), e.getCause());
+        }
       }
     }
+    catch (final InterruptedException e)
+    {
+      Log.w(TAG, "Interrupted while waiting for " + tasks.size() + " tasks");
+      Thread.currentThread().interrupt();
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+    return results;
+  }
 
-    subs.createUserSubscriptions();
+  private static final class SubscriptionLoader implements Callable<Subscription>
+  {
+    private final Subscriptions subscriptions;
+    private final SubscriptionManifest.Entry entry;
+    private final File metaFile;
 
-    return subs;
+    /**
+     * Loads a subscription either from a manifest {@code entry} or from a legacy {@code metaFile}.
+     */
+    SubscriptionLoader(final Subscriptions subscriptions, final SubscriptionManifest.Entry entry,
+        final File metaFile)
+    {
+      this.subscriptions = subscriptions;
+      this.entry = entry;
+      this.metaFile = metaFile;
+    }
+
+    @Override
+    public Subscription call()
+    {
+      final Subscription sub = this.entry != null
+          ? Subscription.deserializeSubscription(this.entry)
+          : Subscription.deserializeSubscription(this.metaFile);
+      // The notification subscription stores JSON, not filters
+      if (sub != null && sub.isEnabled()
+          && !SubscriptionUtils.isNotificationSubscription(sub.getId()))
+      {
+        sub.upgradeFilters(this.subscriptions.getFiltersFile(sub));
+      }
+      return sub;
+    }
+
+    @Override
+    public String toString()
+    {
+      return this.entry != null ? this.entry.url : this.metaFile.getName();
+    }
   }
 
   /**
@@ -271,29 +798,121 @@ final class Subscriptions
     }
   }
 
-  public void checkForUpdates(final boolean forced, final boolean allowMetered) throws IOException
+  public void checkForUpdates(final boolean forced, final boolean allowMetered,
+      final Downloader.Priority priority) throws IOException
   {
     for (Subscription sub : this.subscriptions.values())
     {
       if (sub.isEnabled())
       {
-        this.engine.enqueueDownload(sub, forced, allowMetered);
+        this.engine.enqueueDownload(sub, forced, allowMetered, priority);
       }
     }
   }
 
-  public void updateSubscription(final String id, final int responseCode, final String text,
-      final Map<String, String> httpHeaders)
+  public void updateSubscription(final String id, final int responseCode, final File response,
+      final Map<String, String> responseMeta, final Map<String, String> httpHeaders)
       throws IOException
   {
     final Subscription sub = this.subscriptions.get(id);
-    if (sub != null)
+    try
     {
-      if (sub.updateSubscription(responseCode, text, httpHeaders, this.getMetaFile(sub),
-          this.getFiltersFile(sub)))
+      if (sub != null)
       {
-        this.engine.requestUpdateBroadcast();
+        final File filtersFile = this.getFiltersFile(sub);
+        final HashMap<String, Integer> previousFilters = this.readMergedFilters(id, responseCode,
+            filtersFile);
+        final boolean filtersChanged = sub.updateSubscription(responseCode, response,
+            responseMeta, httpHeaders, filtersFile);
+        sub.serializeMetaData(this.manifest);
+        if (filtersChanged)
+        {
+          if (previousFilters != null)
+          {
+            final FilterStore current = openStore(filtersFile);
+            if (current != null)
+            {
+              final int changes = this.mergedFilters.replaceSource(id, current.getHash(),
+                  previousFilters, current);
+              Log.d(TAG, "Applied " + changes + " changed filters of '" + id + "'");
+            }
+            else
+            {
+              this.mergedFilters.clear();
+            }
+          }
+          this.engine.requestUpdateBroadcast();
+        }
       }
     }
+    finally
+    {
+      if (response != null && response.exists() && !response.delete())
+      {
+        Log.w(TAG, "Failed to delete " + response);
+      }
+    }
+  }
+
+  /**
+   * Reads the filters of a subscription as they were merged, before they get replaced by a
+   * successful download.
+   *
+   * @return the filters mapped to their number of occurrences, or {@code null} if the subscription
+   *         isn't merged
+   */
+  private HashMap<String, Integer> readMergedFilters(final String id, final int responseCode,
+      final File filtersFile)
+  {
+    if (responseCode != 200 || this.mergedFilters == null || !this.mergedFilters.hasSource(id))
+    {
+      return null;
+    }
+    final FilterStore store = openStore(filtersFile);
+    if (store == null || !store.getHash().equals(this.mergedFilters.getSourceHash(id)))
+    {
+      // We can't tell which filters to remove, so merge everything again on the next rebuild
+      this.mergedFilters.clear();
+      return null;
+    }
+    final HashMap<String, Integer> filters = new HashMap<>(store.size());
+    for (int i = 0; i < store.size(); i++)
+    {
+      final String filter = store.getFilter(i);
+      final Integer count = filters.get(filter);
+      filters.put(filter, count != null ? count + 1 : 1);
+    }
+    return filters;
+  }
+
+  /**
+   * Decodes the filters of an enabled subscription, see {@link #updateMergedFilters()}.
+   */
+  private static final class FiltersReader implements Callable<FiltersReader>
+  {
+    private final Subscription sub;
+    private final File filtersFile;
+    private final ArrayList<String> filters = new ArrayList<>();
+    private String hash;
+
+    FiltersReader(final Subscription sub, final File filtersFile)
+    {
+      this.sub = sub;
+      this.filtersFile = filtersFile;
+    }
+
+    @Override
+    public FiltersReader call()
+    {
+      this.sub.readFilters(this.filtersFile, this.filters);
+      this.hash = readStoreHash(this.filtersFile);
+      return this;
+    }
+
+    @Override
+    public String toString()
+    {
+      return this.sub.getId();
+    }
   }
 }
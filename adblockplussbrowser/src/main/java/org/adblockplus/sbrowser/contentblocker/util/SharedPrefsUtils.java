@@ -133,6 +133,15 @@ public class SharedPrefsUtils
     getDefaultSharedPreferences(context).unregisterOnSharedPreferenceChangeListener(listener);
   }
 
+  /**
+   * Starts changing several values at once, {@link SharedPreferences.Editor#apply()} writes them
+   * together, so nobody reads some of them changed and others not.
+   */
+  public static SharedPreferences.Editor edit(final Context context)
+  {
+    return getDefaultSharedPreferences(context).edit();
+  }
+
   private static SharedPreferences getDefaultSharedPreferences(Context context)
   {
     return PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
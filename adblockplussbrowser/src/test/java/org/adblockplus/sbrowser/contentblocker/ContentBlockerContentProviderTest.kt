@@ -0,0 +1,91 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker
+
+import android.content.Context
+import org.adblockplus.adblockplussbrowser.R
+import org.adblockplus.sbrowser.contentblocker.engine.Engine
+import org.adblockplus.sbrowser.contentblocker.util.SharedPrefsUtils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.doReturn
+import org.mockito.Mockito.spy
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class ContentBlockerContentProviderTest
+{
+    private val context: Context = RuntimeEnvironment.application
+    private lateinit var provider: ContentBlockerContentProvider
+
+    @Before
+    fun setup()
+    {
+        // Not attached to a context, as onCreate() would start the engine
+        provider = spy(ContentBlockerContentProvider())
+        doReturn(context).`when`(provider).context
+    }
+
+    @Test
+    fun dummyFileHasNoSnapshot()
+    {
+        val info = getSnapshotInfo()
+        assertEquals(0L, info.getLong(Engine.SNAPSHOT_VERSION))
+        assertNull(info.getString(Engine.SNAPSHOT_HASH))
+        assertEquals(0, info.getInt(Engine.SNAPSHOT_FILTER_COUNT))
+        assertEquals(Engine.getOrCreateCachedFilterFile(context).length(),
+                info.getLong(Engine.SNAPSHOT_SIZE))
+    }
+
+    @Test
+    fun snapshotDescribesCachedFile()
+    {
+        val file = File(context.cacheDir, "filters.txt")
+        file.writeText("[Adblock Plus 2.0]\n||example.com^\n")
+        SharedPrefsUtils.edit(context)
+                .putString(context.getString(R.string.key_cached_filter_path), file.absolutePath)
+                .putString(context.getString(R.string.key_cached_filter_fingerprint), "abc")
+                .putInt(context.getString(R.string.key_cached_filter_count), 1)
+                .putLong(context.getString(R.string.key_cached_filter_version), 3)
+                .apply()
+
+        val info = getSnapshotInfo()
+        assertEquals(3L, info.getLong(Engine.SNAPSHOT_VERSION))
+        assertEquals("abc", info.getString(Engine.SNAPSHOT_HASH))
+        assertEquals(1, info.getInt(Engine.SNAPSHOT_FILTER_COUNT))
+        assertEquals(file.length(), info.getLong(Engine.SNAPSHOT_SIZE))
+
+        // A deleted file isn't described anymore, the dummy file gets delivered instead
+        file.delete()
+        assertEquals(0L, getSnapshotInfo().getLong(Engine.SNAPSHOT_VERSION))
+    }
+
+    @Test
+    fun otherMethodsReturnNull()
+    {
+        assertNull(provider.call("unknown", null, null))
+    }
+
+    private fun getSnapshotInfo() =
+            provider.call(ContentBlockerContentProvider.METHOD_GET_SNAPSHOT_INFO, null, null)!!
+}
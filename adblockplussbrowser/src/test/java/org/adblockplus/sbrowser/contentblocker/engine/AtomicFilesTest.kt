@@ -0,0 +1,241 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import android.content.Context
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.File
+import java.io.FileOutputStream
+import java.net.URL
+import java.util.concurrent.LinkedBlockingQueue
+
+/**
+ * Simulates the process dying at every phase of a write, by copying the subscription folder as it
+ * is at that moment, and checks that the copy still holds valid filters after recovery.
+ */
+@RunWith(RobolectricTestRunner::class)
+class AtomicFilesTest
+{
+    companion object
+    {
+        private const val FILTERS_FILE = "url_easylist.txt.sub"
+        private val OLD_FILTERS = setOf("||old.example.com^", "##.old-ad")
+        private val NEW_FILTERS = setOf("||new.example.com^", "##.new-ad", "@@||good.example.com^")
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    /**
+     * Points in a write at which the process might die.
+     */
+    private enum class Phase
+    {
+        /** All content is in the temporary file, but not synced yet */
+        WRITTEN,
+        /** The temporary file was synced, but not renamed yet */
+        SYNCED,
+        /** The temporary file replaced the target, but the directory isn't synced yet */
+        RENAMED,
+        /** The directory was synced */
+        DIRECTORY_SYNCED
+    }
+
+    private var snapshotCount = 0
+
+    @Test
+    fun crashWhileReplacingKeepsValidFilters()
+    {
+        val dir = tempFolder.newFolder("subscriptions")
+        val file = File(dir, FILTERS_FILE)
+        subscription(OLD_FILTERS).serializeFilters(file)
+
+        val snapshots = captureSnapshots(dir) { subscription(NEW_FILTERS).serializeFilters(file) }
+        assertEquals(Phase.values().size, snapshots.size)
+
+        assertEquals(OLD_FILTERS, recoverAndRead(snapshots.getValue(Phase.WRITTEN)))
+        assertEquals(OLD_FILTERS, recoverAndRead(snapshots.getValue(Phase.SYNCED)))
+        assertEquals(NEW_FILTERS, recoverAndRead(snapshots.getValue(Phase.RENAMED)))
+        assertEquals(NEW_FILTERS, recoverAndRead(snapshots.getValue(Phase.DIRECTORY_SYNCED)))
+        assertEquals(NEW_FILTERS, recoverAndRead(dir))
+    }
+
+    @Test
+    fun crashDuringFirstWriteRecoversCompleteStore()
+    {
+        val dir = tempFolder.newFolder("subscriptions")
+        val file = File(dir, FILTERS_FILE)
+
+        val snapshots = captureSnapshots(dir) { subscription(NEW_FILTERS).serializeFilters(file) }
+
+        assertEquals(NEW_FILTERS, recoverAndRead(snapshots.getValue(Phase.SYNCED)))
+        assertEquals(NEW_FILTERS, recoverAndRead(snapshots.getValue(Phase.RENAMED)))
+    }
+
+    @Test
+    fun crashBeforeFinishKeepsPreviousFilters()
+    {
+        val dir = tempFolder.newFolder("subscriptions")
+        val file = File(dir, FILTERS_FILE)
+        subscription(OLD_FILTERS).serializeFilters(file)
+
+        val writer = FilterStore.Writer(file)
+        NEW_FILTERS.forEach { writer.add(it) }
+        val snapshot = snapshot(dir)
+        writer.close()
+
+        assertEquals(OLD_FILTERS, recoverAndRead(snapshot))
+        assertEquals(OLD_FILTERS, recoverAndRead(dir))
+        assertFalse(AtomicFiles.getTempFile(file).exists())
+    }
+
+    @Test
+    fun crashWhileMovingKeepsValidFilters()
+    {
+        val dir = tempFolder.newFolder("subscriptions")
+        val file = File(dir, FILTERS_FILE)
+        subscription(OLD_FILTERS).serializeFilters(file)
+        val download = File(tempFolder.newFolder("downloads"), "download.sub")
+        subscription(NEW_FILTERS).serializeFilters(download)
+
+        val snapshots = captureSnapshots(dir) { AtomicFiles.move(download, file) }
+        assertEquals(Phase.values().size, snapshots.size)
+
+        assertEquals(OLD_FILTERS, recoverAndRead(snapshots.getValue(Phase.WRITTEN)))
+        assertEquals(OLD_FILTERS, recoverAndRead(snapshots.getValue(Phase.SYNCED)))
+        assertEquals(NEW_FILTERS, recoverAndRead(snapshots.getValue(Phase.RENAMED)))
+        assertEquals(NEW_FILTERS, recoverAndRead(snapshots.getValue(Phase.DIRECTORY_SYNCED)))
+        assertFalse(download.exists())
+    }
+
+    @Test
+    fun finishedDownloadReplacesStore()
+    {
+        val constructor = Engine::class.java.getDeclaredConstructor(Context::class.java)
+        constructor.isAccessible = true
+        val engine = constructor.newInstance(RuntimeEnvironment.application)
+        engine.downloadDir.mkdirs()
+        val field = Engine::class.java.getDeclaredField("engineEvents")
+        field.isAccessible = true
+        val events = field.get(engine) as LinkedBlockingQueue<*>
+
+        val appFolder = tempFolder.newFolder()
+        val subscriptions = Subscriptions.initialize(engine, appFolder, tempFolder.newFolder())
+        val sub = subscriptions.add(subscription(OLD_FILTERS))
+        sub.setEnabled(true)
+        subscriptions.persistSubscription(sub)
+        subscriptions.commitMetaData()
+
+        val response = File(engine.downloadDir, "download.sub")
+        subscription(NEW_FILTERS).serializeFilters(response)
+        engine.downloadFinished(sub.id, 200, response, mapOf(Subscription.KEY_VERSION to "2"),
+                mapOf("etag" to "\"2\""))
+        val event = events.poll()!!
+        subscriptions.updateSubscription(eventField(event, "id"), eventField(event, "responseCode"),
+                eventField(event, "response"), eventField(event, "responseMeta"),
+                eventField(event, "headers"))
+        subscriptions.commitMetaData()
+        assertFalse(response.exists())
+
+        val loaded = ArrayList<Subscription>()
+        Subscriptions.initialize(engine, appFolder, tempFolder.newFolder()).loadSubscriptions(loaded)
+        val reloaded = loaded.first { it.id == sub.id }
+        assertTrue(reloaded.isMetaDataValid)
+        assertEquals("2", reloaded.getMeta(Subscription.KEY_VERSION))
+        assertEquals("\"2\"", reloaded.getMeta(Subscription.KEY_HTTP_ETAG))
+        val filters = HashSet<String>()
+        reloaded.readFilters(subscriptions.getFiltersFile(reloaded), filters)
+        assertTrue(reloaded.isFiltersValid)
+        assertEquals(NEW_FILTERS, filters)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun <T> eventField(event: Any, name: String): T
+    {
+        val field = event.javaClass.getDeclaredField(name)
+        field.isAccessible = true
+        return field.get(event) as T
+    }
+
+    private fun subscription(filters: Collection<String>): Subscription
+    {
+        return Subscription.create(URL("https://example.com/easylist.txt"), filters.toList())
+    }
+
+    private fun captureSnapshots(dir: File, write: () -> Unit): Map<Phase, File>
+    {
+        val snapshots = HashMap<Phase, File>()
+        val previous = AtomicFiles.setFileSystem(object : AtomicFiles.FileSystem()
+        {
+            override fun sync(out: FileOutputStream)
+            {
+                snapshots[Phase.WRITTEN] = snapshot(dir)
+                super.sync(out)
+                snapshots[Phase.SYNCED] = snapshot(dir)
+            }
+
+            override fun rename(from: File, to: File)
+            {
+                super.rename(from, to)
+                snapshots[Phase.RENAMED] = snapshot(dir)
+            }
+
+            override fun syncDirectory(dir: File)
+            {
+                super.syncDirectory(dir)
+                snapshots[Phase.DIRECTORY_SYNCED] = snapshot(dir)
+            }
+        })
+        try
+        {
+            write()
+        }
+        finally
+        {
+            AtomicFiles.setFileSystem(previous)
+        }
+        return snapshots
+    }
+
+    private fun snapshot(dir: File): File
+    {
+        val copy = tempFolder.newFolder("snapshot" + snapshotCount++)
+        dir.copyRecursively(copy, overwrite = true)
+        return copy
+    }
+
+    private fun recoverAndRead(dir: File): Set<String>
+    {
+        Subscriptions.recoverInterruptedWrites(dir)
+        assertTrue(dir.listFiles().none { it.name.endsWith(AtomicFiles.TEMP_SUFFIX) })
+
+        val filters = HashSet<String>()
+        val sub = Subscription.create(URL("https://example.com/easylist.txt"))
+        sub.readFilters(File(dir, FILTERS_FILE), filters)
+        assertTrue(sub.isFiltersValid)
+        return filters
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import android.content.Context
+import org.adblockplus.adblockplussbrowser.R
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.ByteArrayInputStream
+import java.io.InputStreamReader
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class ChecksumVerificationTest
+{
+    companion object
+    {
+        private const val EASYLIST_CHECKSUM = "5c0u2qv5DL/HdkxpHXDgLQ"
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var easylist: String
+
+    @Before
+    fun setup()
+    {
+        RuntimeEnvironment.application.resources.openRawResource(R.raw.easylist).use { input ->
+            easylist = input.readBytes().toString(Charsets.UTF_8)
+        }
+    }
+
+    @Test
+    fun bundledListVerifies()
+    {
+        val meta = HashMap<String, String>()
+        val file = tempFolder.newFile("easylist.sub")
+        val numFilters = Subscription.parseDownload(easylist.byteInputStream(), meta, file)
+
+        assertEquals(EASYLIST_CHECKSUM, meta["checksum"])
+        assertEquals(numFilters, FilterStore.open(file).size())
+        assertTrue(FilterStore.open(file).verify())
+    }
+
+    @Test
+    fun lineBreaksAreNormalized()
+    {
+        val checksum = checksumOf(easylist.replace("\n", "\r\n\n"))
+        assertEquals(EASYLIST_CHECKSUM, checksum.expected)
+        assertEquals(EASYLIST_CHECKSUM, checksum.actual)
+    }
+
+    @Test
+    fun modifiedListIsRejected()
+    {
+        val modified = easylist.replaceFirst("\n||", "\n||x")
+        assertNotEquals(easylist, modified)
+        assertEquals(EASYLIST_CHECKSUM, checksumOf(modified).expected)
+
+        try
+        {
+            Subscription.parseDownload(modified.byteInputStream(), HashMap(),
+                    tempFolder.newFile("modified.sub"))
+            throw AssertionError("Modified list was accepted")
+        }
+        catch (e: ChecksumInputStream.MismatchException)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    fun mismatchIsNotRetried()
+    {
+        val constructor = Engine::class.java.getDeclaredConstructor(Context::class.java)
+        constructor.isAccessible = true
+        val engine = constructor.newInstance(RuntimeEnvironment.application)
+        engine.downloadDir.mkdirs()
+        val field = Engine::class.java.getDeclaredField("engineEvents")
+        field.isAccessible = true
+        val events = field.get(engine) as LinkedBlockingQueue<*>
+
+        val filters = listOf("! Checksum: AAAAAAAAAAAAAAAAAAAAAA", "||example.com^")
+        FilterListServer(mapOf("1" to filters), "1").use { server ->
+            server.etag = "\"1\""
+            val downloader = Downloader.create(engine, 1, 1)
+            downloader.enqueueDownload(server.url, "mismatch", HashMap(), true, null,
+                    Downloader.Priority.USER)
+            val idle = CountDownLatch(1)
+            downloader.runWhenIdle { idle.countDown() }
+            assertTrue(idle.await(30, TimeUnit.SECONDS))
+
+            assertEquals(1, server.requests.size)
+            assertEquals(1, downloader.checksumFailures)
+            assertEquals(1, events.size)
+            assertTrue(engine.downloadDir.listFiles { _, name -> name.endsWith(".part") }.isEmpty())
+        }
+    }
+
+    @Test
+    fun listWithoutChecksumIsAccepted()
+    {
+        val list = "[Adblock Plus 2.0]\n! Version: 1\n||a.com^\n##.ad\n"
+        val checksum = checksumOf(list)
+        assertNull(checksum.expected)
+        checksum.verify()
+
+        assertEquals(2, Subscription.parseDownload(list.byteInputStream(), HashMap(),
+                tempFolder.newFile("unchecked.sub")))
+    }
+
+    @Test
+    fun checksumLineIsExcluded()
+    {
+        val list = "[Adblock Plus 2.0]\n! Version: 1\n||a.com^\n"
+        val unchecked = checksumOf(list).actual
+        val withChecksum = list.replace("\n! Version", "\n  !  CHECKSUM - $unchecked\n! Version")
+
+        val checksum = checksumOf(withChecksum)
+        assertEquals(unchecked, checksum.expected)
+        assertEquals(unchecked, checksum.actual)
+    }
+
+    private fun checksumOf(list: String): ChecksumInputStream
+    {
+        val checksum = ChecksumInputStream(ByteArrayInputStream(list.toByteArray(Charsets.UTF_8)))
+        InputStreamReader(checksum, Charsets.UTF_8).buffered().use { reader ->
+            while (reader.readLine() != null)
+            {
+                // Only reading the list
+            }
+        }
+        return checksum
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class CompiledWhitelistTest
+{
+    @Test
+    fun hostsAreNormalizedAndCollapsed()
+    {
+        val websites = setOf("https://Example.com/page", "example.com", "ads.example.com",
+                "http://sub.example.org.", "x.sub.example.org", "www.example.net")
+        assertEquals(listOf("@@||example.com^\$document", "@@||sub.example.org^\$document",
+                "@@||www.example.net^\$document"), CompiledWhitelist.compile(websites, 1).filters)
+    }
+
+    @Test
+    fun invalidWebsitesAreSkipped()
+    {
+        assertEquals(listOf("@@||example.com^\$document"),
+                CompiledWhitelist.compile(setOf("example.com", "not a url", "http:///"), 1).filters)
+    }
+
+    @Test
+    fun changesAreDetected()
+    {
+        val whitelist = CompiledWhitelist.compile(setOf("example.com"), 1)
+        assertTrue(whitelist.isCompiledFrom(setOf("example.com")))
+        assertFalse(whitelist.isCompiledFrom(setOf("example.com", "example.org")))
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import android.content.Context
+import android.net.ConnectivityManager
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import java.net.URL
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class DownloaderPoolTest
+{
+    companion object
+    {
+        private const val LATENCY_MILLIS = 200L
+        private const val JOBS = 6
+    }
+
+    private lateinit var engine: Engine
+    private lateinit var events: LinkedBlockingQueue<*>
+    private lateinit var server: FilterListServer
+
+    @Before
+    fun setup()
+    {
+        val constructor = Engine::class.java.getDeclaredConstructor(Context::class.java)
+        constructor.isAccessible = true
+        engine = constructor.newInstance(RuntimeEnvironment.application)
+        engine.downloadDir.mkdirs()
+        val field = Engine::class.java.getDeclaredField("engineEvents")
+        field.isAccessible = true
+        events = field.get(engine) as LinkedBlockingQueue<*>
+
+        server = FilterListServer(mapOf("1" to listOf("||example.com^")), "1")
+        server.latencyMillis = LATENCY_MILLIS
+    }
+
+    @After
+    fun tearDown()
+    {
+        server.close()
+    }
+
+    @Test
+    fun workersDownloadInParallel()
+    {
+        val sequential = downloadAll(1, 1)
+        val parallel = downloadAll(JOBS, JOBS)
+        println("$JOBS downloads with ${LATENCY_MILLIS} ms latency: sequential " +
+                "${sequential / 1000000} ms, parallel ${parallel / 1000000} ms")
+        assertTrue(sequential >= JOBS * LATENCY_MILLIS * 1000000)
+        assertTrue(parallel < sequential / 2)
+    }
+
+    @Test
+    fun downloadsPerHostAreLimited()
+    {
+        downloadAll(JOBS, 2)
+        assertEquals(2, server.maxConcurrentRequests)
+        assertEquals(JOBS, server.requests.size)
+    }
+
+    @Test
+    fun connectionsGetReused()
+    {
+        downloadAll(1, 1)
+        assertEquals(JOBS, server.requests.size)
+        assertEquals(1, server.connections.size)
+    }
+
+    @Test
+    fun duplicateJobsGetDropped()
+    {
+        val downloader = Downloader.create(engine, 2, 2)
+        repeat(3) { downloader.enqueueDownload(server.url, "same", HashMap(), true, null,
+                Downloader.Priority.BACKGROUND) }
+        awaitDownloads(1)
+        assertEquals(1, server.requests.size)
+    }
+
+    @Test
+    fun userJobsPassQueuedBackgroundJobs()
+    {
+        val downloader = Downloader.create(engine, 1, 1)
+        for (i in 0 until JOBS)
+        {
+            downloader.enqueueDownload(URL("${server.url}&id=background$i"), "background$i",
+                    HashMap(), true, null, Downloader.Priority.BACKGROUND)
+        }
+        downloader.enqueueDownload(URL("${server.url}&id=first"), "first", HashMap(), true, null,
+                Downloader.Priority.FIRST_RUN)
+        downloader.enqueueDownload(URL("${server.url}&id=user"), "user", HashMap(), true, null,
+                Downloader.Priority.USER)
+        awaitDownloads(JOBS + 2)
+
+        // The first background job might have started before the others were queued
+        val order = server.requests.map { it.substringAfter("&id=") }.filter { it != "background0" }
+        assertEquals(listOf("user", "first"), order.subList(0, 2))
+        assertTrue(downloader.getMaxWaitMillis(Downloader.Priority.BACKGROUND) >=
+                downloader.getMaxWaitMillis(Downloader.Priority.USER))
+    }
+
+    @Test
+    fun queuedJobGetsPromoted()
+    {
+        val downloader = Downloader.create(engine, 1, 1)
+        for (i in 0 until JOBS)
+        {
+            downloader.enqueueDownload(URL("${server.url}&id=list$i"), "list$i", HashMap(), true,
+                    null, Downloader.Priority.BACKGROUND)
+        }
+        downloader.enqueueDownload(URL("${server.url}&id=list${JOBS - 1}"), "list${JOBS - 1}",
+                HashMap(), true, null, Downloader.Priority.USER)
+        awaitDownloads(JOBS)
+
+        assertEquals(JOBS, server.requests.size)
+        val order = server.requests.map { it.substringAfter("&id=") }.filter { it != "list0" }
+        assertEquals("list${JOBS - 1}", order[0])
+    }
+
+    @Test
+    fun connectivityChangeWakesUpDownloader()
+    {
+        server.latencyMillis = 0
+        val connManager = RuntimeEnvironment.application
+                .getSystemService(Context.CONNECTIVITY_SERVICE) as ConnectivityManager
+        val network = connManager.activeNetworkInfo
+        shadowOf(connManager).setActiveNetworkInfo(null)
+
+        val downloader = Downloader.create(engine, 1, 1)
+        downloader.enqueueDownload(server.url, "offline", HashMap(), true, null,
+                Downloader.Priority.USER)
+        assertNull(events.poll(500, TimeUnit.MILLISECONDS))
+        assertEquals(0, server.requests.size)
+
+        shadowOf(connManager).setActiveNetworkInfo(network)
+        val start = System.nanoTime()
+        downloader.connectivityChanged()
+        awaitDownloads(1)
+        val millis = (System.nanoTime() - start) / 1000000
+        println("Download started $millis ms after connectivity changed")
+        assertTrue(millis < 1000)
+    }
+
+    @Test
+    fun idleCallbackRunsAfterDownloads()
+    {
+        val downloader = Downloader.create(engine, 2, 2)
+        for (i in 0 until JOBS)
+        {
+            downloader.enqueueDownload(server.url, "list$i", HashMap(), true, null,
+                    Downloader.Priority.BACKGROUND)
+        }
+        val idle = CountDownLatch(1)
+        downloader.runWhenIdle { idle.countDown() }
+        assertEquals(1, idle.count)
+        assertTrue(idle.await(30, TimeUnit.SECONDS))
+        assertEquals(JOBS, events.size)
+    }
+
+    @Test
+    fun removedIdleCallbackDoesNotRun()
+    {
+        val downloader = Downloader.create(engine, 1, 1)
+        downloader.enqueueDownload(server.url, "list", HashMap(), true, null,
+                Downloader.Priority.BACKGROUND)
+        val removed = CountDownLatch(1)
+        val callback = Runnable { removed.countDown() }
+        downloader.runWhenIdle(callback)
+        downloader.removeIdleCallback(callback)
+        val idle = CountDownLatch(1)
+        downloader.runWhenIdle { idle.countDown() }
+        assertTrue(idle.await(30, TimeUnit.SECONDS))
+        assertEquals(1, removed.count)
+    }
+
+    /**
+     * @return the time in nanoseconds it took to download [JOBS] lists
+     */
+    private fun downloadAll(workers: Int, perHost: Int): Long
+    {
+        val downloader = Downloader.create(engine, workers, perHost)
+        val start = System.nanoTime()
+        for (i in 0 until JOBS)
+        {
+            downloader.enqueueDownload(server.url, "list$i", HashMap(), true, null,
+                    Downloader.Priority.BACKGROUND)
+        }
+        awaitDownloads(JOBS)
+        return System.nanoTime() - start
+    }
+
+    private fun awaitDownloads(count: Int)
+    {
+        repeat(count) {
+            assertTrue(events.poll(30, TimeUnit.SECONDS) != null)
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+import java.io.IOException
+
+@RunWith(RobolectricTestRunner::class)
+class DownloaderResumeTest
+{
+    companion object
+    {
+        private const val ID = "url:https://easylist-downloads.adblockplus.org/easylist.txt"
+        private val FILTERS = (0 until 2000).map { "||ad$it.example.com^" }
+        private const val TRUNCATE_AFTER = 5000
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var server: FilterListServer
+    private lateinit var downloadDir: File
+    private var listSize = 0
+
+    @Before
+    fun setup()
+    {
+        server = FilterListServer(mapOf("1" to FILTERS), "1")
+        server.etag = "\"1\""
+        server.truncatedResponses = 1
+        server.truncateAfterBytes = TRUNCATE_AFTER
+        downloadDir = tempFolder.newFolder("downloads")
+        listSize = ("[Adblock Plus 2.0]\n! Version: 1\n" + FILTERS.joinToString("\n") + "\n")
+                .toByteArray().size
+    }
+
+    @After
+    fun tearDown()
+    {
+        server.close()
+    }
+
+    @Test
+    fun truncatedDownloadGetsResumed()
+    {
+        val job = createJob()
+        downloadTruncated(job)
+        assertEquals(1, partFiles().size)
+
+        Downloader.download(job, downloadDir)
+        assertEquals(200, job.responseCode)
+        assertEquals(listOf(null, "bytes=$TRUNCATE_AFTER-"), server.ranges)
+        assertEquals(listSize, server.sentBytes.get())
+        assertEquals(FILTERS.sorted(), readFilters(job.responseFile))
+        assertTrue(partFiles().isEmpty())
+    }
+
+    @Test
+    fun changedListGetsDownloadedAgain()
+    {
+        val job = createJob()
+        downloadTruncated(job)
+
+        server.etag = "\"2\""
+        Downloader.download(job, downloadDir)
+        assertEquals(200, job.responseCode)
+        assertEquals(listSize + TRUNCATE_AFTER, server.sentBytes.get())
+        assertEquals(FILTERS.sorted(), readFilters(job.responseFile))
+        assertTrue(partFiles().isEmpty())
+    }
+
+    @Test
+    fun responseWithoutValidatorIsNotResumed()
+    {
+        server.etag = null
+        val job = createJob()
+        downloadTruncated(job)
+        assertTrue(partFiles().isEmpty())
+
+        Downloader.download(job, downloadDir)
+        assertEquals(listOf<String?>(null, null), server.ranges)
+        assertEquals(FILTERS.sorted(), readFilters(job.responseFile))
+    }
+
+    @Test
+    fun repeatedTruncationKeepsResuming()
+    {
+        server.truncatedResponses = 3
+        val job = createJob()
+        repeat(3) { downloadTruncated(job) }
+
+        Downloader.download(job, downloadDir)
+        assertEquals(FILTERS.sorted(), readFilters(job.responseFile))
+        assertEquals(listSize, server.sentBytes.get())
+    }
+
+    @Test
+    fun promotedJobResumesDownload()
+    {
+        val job = createJob()
+        downloadTruncated(job)
+
+        val promoted = createJob(Downloader.Priority.USER)
+        promoted.takeOver(job)
+        Downloader.download(promoted, downloadDir)
+        assertEquals(listOf(null, "bytes=$TRUNCATE_AFTER-"), server.ranges)
+        assertEquals(listSize, server.sentBytes.get())
+        assertEquals(FILTERS.sorted(), readFilters(promoted.responseFile))
+        assertTrue(partFiles().isEmpty())
+    }
+
+    @Test
+    fun fullListFromDiffUrlGetsResumed()
+    {
+        server.serveDiffs = false
+        val diff = FilterDiff.Request(server.diffUrl("1"), tempFolder.newFile(), "1")
+        val job = Downloader.DownloadJob(server.url, ID, HashMap(), true, diff,
+                Downloader.Priority.BACKGROUND)
+
+        Downloader.download(job, downloadDir)
+        assertEquals(200, job.responseCode)
+        assertEquals(listOf("addonName=test&diff=1", "addonName=test"), server.requests)
+        assertEquals(listOf(null, "bytes=$TRUNCATE_AFTER-"), server.ranges)
+        assertEquals(listSize, server.sentBytes.get())
+        assertEquals(FILTERS.sorted(), readFilters(job.responseFile))
+        assertTrue(partFiles().isEmpty())
+    }
+
+    private fun createJob(priority: Downloader.Priority = Downloader.Priority.BACKGROUND) =
+            Downloader.DownloadJob(server.url, ID, HashMap(), true, null, priority)
+
+    private fun downloadTruncated(job: Downloader.DownloadJob)
+    {
+        try
+        {
+            Downloader.download(job, downloadDir)
+            throw AssertionError("Truncated download succeeded")
+        }
+        catch (e: IOException)
+        {
+            assertNull(job.responseFile)
+        }
+    }
+
+    private fun partFiles() = downloadDir.listFiles { _, name -> name.endsWith(".part") }.toList()
+
+    private fun readFilters(file: File?): List<String>
+    {
+        val filters = ArrayList<String>()
+        FilterStore.open(file!!).copyFilters(filters)
+        return filters.sorted()
+    }
+}
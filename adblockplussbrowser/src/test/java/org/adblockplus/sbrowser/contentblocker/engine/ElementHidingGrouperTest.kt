@@ -0,0 +1,77 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.StringWriter
+
+@RunWith(RobolectricTestRunner::class)
+class ElementHidingGrouperTest
+{
+    private fun group(vararg filters: String): Set<String>
+    {
+        val grouper = ElementHidingGrouper()
+        val writer = StringWriter()
+        for (filter in filters)
+        {
+            if (!grouper.add(filter))
+            {
+                writer.write(filter + "\n")
+            }
+        }
+        grouper.write(writer)
+        return writer.toString().lines().filter { it.isNotEmpty() }.toSet()
+    }
+
+    @Test
+    fun filtersWithTheSameSelectorAreMerged()
+    {
+        assertEquals(setOf("a.com,b.com,c.com##.ad", "||example.com^"),
+                group("b.com##.ad", "a.com,C.com##.ad", "||example.com^"))
+    }
+
+    @Test
+    fun excludedDomainsAreNotMerged()
+    {
+        assertEquals(setOf("a.com,~x.a.com##.ad", "b.com##.ad"),
+                group("a.com,~x.a.com##.ad", "b.com##.ad"))
+    }
+
+    @Test
+    fun filtersCoveredByGenericFiltersAreDropped()
+    {
+        assertEquals(setOf("##.ad"), group("a.com##.ad", "##.ad"))
+    }
+
+    @Test
+    fun genericHideKeepsDomainSpecificFilters()
+    {
+        assertEquals(setOf("##.ad", "a.com##.ad", "@@||a.com^\$generichide"),
+                group("a.com##.ad", "##.ad", "@@||a.com^\$generichide"))
+    }
+
+    @Test
+    fun exceptionsKeepFiltersAsTheyAre()
+    {
+        assertEquals(setOf("a.com##.ad", "b.com##.ad", "a.com#@#.ad", "c.com#?#.ad"),
+                group("a.com##.ad", "b.com##.ad", "a.com#@#.ad", "c.com#?#.ad"))
+    }
+}
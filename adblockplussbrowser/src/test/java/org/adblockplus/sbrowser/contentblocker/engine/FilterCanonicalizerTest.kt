@@ -0,0 +1,77 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.adblockplus.adblockplussbrowser.R
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+@RunWith(RobolectricTestRunner::class)
+class FilterCanonicalizerTest
+{
+    private val canonicalizer = FilterCanonicalizer()
+
+    @Test
+    fun optionOrderAndCaseAreNormalized()
+    {
+        val expected = "||example.com^\$script,third-party"
+        assertEquals(expected, canonicalizer.canonicalize("||example.com^\$third-party,script"))
+        assertEquals(expected, canonicalizer.canonicalize("||Example.com^\$Script,THIRD-PARTY"))
+        assertEquals(expected, canonicalizer.canonicalize("||example.com^\$script,script,third-party"))
+        assertEquals(expected, canonicalizer.canonicalize("||example.com^\$third-party,~match-case,script"))
+        assertEquals("||example.com^\$domain=a.com|~b.com,image",
+                canonicalizer.canonicalize("||example.com^\$image,domain=~B.com|a.com"))
+        assertEquals(4, canonicalizer.rewritten)
+    }
+
+    @Test
+    fun caseSensitiveFiltersAreKept()
+    {
+        assertEquals("/Ads\\W/\$script", canonicalizer.canonicalize("/Ads\\W/\$script"))
+        assertEquals("||example.com/Ad\$match-case",
+                canonicalizer.canonicalize("||example.com/Ad\$match-case"))
+        assertEquals("@@/Ads/", canonicalizer.canonicalize("@@/Ads/"))
+    }
+
+    @Test
+    fun unsupportedFiltersAreKept()
+    {
+        for (filter in listOf("! Comment", "[Adblock Plus 2.0]", "Example.com##.Ad",
+                "Example.com#@#.Ad", "x\$\$y", "x\$", "x\$domain=|a.com", "x\$a b"))
+        {
+            assertSame(filter, canonicalizer.canonicalize(filter))
+        }
+        assertEquals(0, canonicalizer.rewritten)
+    }
+
+    @Test
+    fun canonicalFormIsStable()
+    {
+        val easylist = RuntimeEnvironment.application.resources.openRawResource(R.raw.easylist)
+                .use { Engine.readLines(it) }
+        for (filter in easylist)
+        {
+            val canonical = canonicalizer.canonicalize(filter)
+            assertSame(canonical, canonicalizer.canonicalize(canonical))
+        }
+    }
+}
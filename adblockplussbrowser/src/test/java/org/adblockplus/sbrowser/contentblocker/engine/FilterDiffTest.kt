@@ -0,0 +1,151 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.IOException
+
+@RunWith(RobolectricTestRunner::class)
+class FilterDiffTest
+{
+    companion object {
+        private const val ID = "url:https://easylist-downloads.adblockplus.org/easylist.txt"
+        private val VERSION_1 = listOf("||a.example.com^", "||b.example.com^", "##.ad",
+                "##.ad", "@@||good.example.com^")
+        private val VERSION_2 = listOf("||a.example.com^", "||c.example.com^", "##.ad",
+                "@@||good.example.com^", "example.com##.banner")
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var server: FilterListServer
+    private lateinit var baseFile: File
+    private lateinit var downloadDir: File
+
+    @Before
+    fun setup()
+    {
+        server = FilterListServer(mapOf("1" to VERSION_1, "2" to VERSION_2), "2")
+        downloadDir = tempFolder.newFolder("downloads")
+        baseFile = tempFolder.newFile("url_easylist.txt.sub")
+        val list = "[Adblock Plus 2.0]\n! Version: 1\n" + VERSION_1.joinToString("\n")
+        Subscription.parseDownload(ByteArrayInputStream(list.toByteArray()), HashMap(), baseFile)
+    }
+
+    @After
+    fun tearDown()
+    {
+        server.close()
+    }
+
+    @Test
+    fun diffGetsApplied()
+    {
+        val job = download("1")
+
+        assertEquals(200, job.responseCode)
+        assertEquals("2", job.responseMeta[Subscription.KEY_VERSION])
+        assertEquals(sorted(VERSION_2), readFilters(job.responseFile))
+        assertEquals(1, server.requests.size)
+        assertTrue(server.requests[0].contains("diff=1"))
+    }
+
+    @Test
+    fun unknownBaseFallsBackToFullDownload()
+    {
+        val job = download("0")
+
+        assertEquals(200, job.responseCode)
+        assertEquals(sorted(VERSION_2), readFilters(job.responseFile))
+        assertEquals(2, server.requests.size)
+        assertFalse(server.requests[1].contains("diff="))
+    }
+
+    @Test
+    fun fingerprintMismatchFallsBackToFullDownload()
+    {
+        server.corruptFingerprint = true
+        val job = download("1")
+
+        assertEquals(200, job.responseCode)
+        assertEquals(sorted(VERSION_2), readFilters(job.responseFile))
+        assertEquals(2, server.requests.size)
+    }
+
+    @Test
+    fun serverWithoutDiffSupportSendsFullList()
+    {
+        server.serveDiffs = false
+        val job = download("1")
+
+        assertEquals(sorted(VERSION_2), readFilters(job.responseFile))
+        assertEquals(1, server.requests.size)
+    }
+
+    @Test
+    fun diffAgainstChangedBaseFails()
+    {
+        // The stored filters claim version 1, but were modified locally
+        Subscription.parseDownload(ByteArrayInputStream("||x.example.com^".toByteArray()), HashMap(),
+                baseFile)
+        val diff = FilterDiff.Request(server.diffUrl("1"), baseFile, "1")
+        val target = File(downloadDir, "patched.sub")
+
+        val failed = try
+        {
+            FilterDiff.apply(server.diffUrl("1").openStream(), diff, HashMap(), target)
+            false
+        }
+        catch (e: IOException)
+        {
+            true
+        }
+        assertTrue(failed)
+        assertFalse(target.exists())
+    }
+
+    private fun download(baseVersion: String): Downloader.DownloadJob
+    {
+        val diff = FilterDiff.Request(server.diffUrl(baseVersion), baseFile, baseVersion)
+        val job = Downloader.DownloadJob(server.url, ID, HashMap(), true, diff,
+                Downloader.Priority.BACKGROUND)
+        Downloader.download(job, downloadDir)
+        return job
+    }
+
+    private fun readFilters(file: File?): List<String>
+    {
+        val filters = ArrayList<String>()
+        FilterStore.open(file!!).copyFilters(filters)
+        return filters.sorted()
+    }
+
+    private fun sorted(filters: List<String>): List<String> = filters.sorted()
+}
@@ -0,0 +1,145 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.adblockplus.adblockplussbrowser.R
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.RandomAccessFile
+import java.net.URL
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.Collections
+
+@RunWith(RobolectricTestRunner::class)
+class FilterFingerprintTest
+{
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var easylist: List<String>
+
+    @Before
+    fun setup()
+    {
+        RuntimeEnvironment.application.resources.openRawResource(R.raw.easylist).use { input ->
+            easylist = Engine.readLines(input).filter { it.isNotEmpty() && !it.startsWith("!") && !it.startsWith("[") }
+        }
+    }
+
+    @Test
+    fun fingerprintIsOrderIndependent()
+    {
+        val forward = fingerprintOf(easylist)
+        val shuffled = ArrayList(easylist)
+        Collections.shuffle(shuffled)
+        assertEquals(forward, fingerprintOf(shuffled))
+        assertEquals(forward.toString(), fingerprintOf(shuffled).toString())
+    }
+
+    @Test
+    fun fingerprintCountsDuplicates()
+    {
+        assertNotEquals(fingerprintOf(listOf("||a.com^")), fingerprintOf(listOf("||a.com^", "||a.com^")))
+        assertNotEquals(FilterFingerprint(), fingerprintOf(listOf("||a.com^", "||a.com^")))
+    }
+
+    @Test
+    fun removeUndoesAdd()
+    {
+        val fingerprint = fingerprintOf(listOf("||a.com^", "||b.com^", "##.ad"))
+        fingerprint.remove("||b.com^")
+        assertEquals(fingerprintOf(listOf("##.ad", "||a.com^")), fingerprint)
+    }
+
+    @Test
+    fun storeVerifiesAndDetectsCorruption()
+    {
+        val file = tempFolder.newFile("easylist.sub")
+        Subscription.create(URL("https://example.com/easylist.txt"), easylist).serializeFilters(file)
+
+        val store = FilterStore.open(file)
+        assertEquals(FilterStore.FORMAT_VERSION, store.version)
+        assertEquals(fingerprintOf(HashSet(easylist)).toString(), store.hash)
+        assertTrue(store.verify())
+
+        RandomAccessFile(file, "rw").use { raf ->
+            val position = FilterStore.PAGE_SIZE + 100L
+            raf.seek(position)
+            val b = raf.read()
+            raf.seek(position)
+            raf.write(b xor 1)
+        }
+        assertFalse(FilterStore.open(file).verify())
+    }
+
+    @Test
+    fun benchmarkSortedMd5AgainstFingerprint()
+    {
+        val filters = HashSet(easylist)
+        val rounds = 10
+        // Warm up both code paths
+        sortedMd5(filters)
+        fingerprintOf(filters)
+
+        var start = System.nanoTime()
+        for (i in 1..rounds)
+        {
+            sortedMd5(filters)
+        }
+        val md5Nanos = (System.nanoTime() - start) / rounds
+
+        start = System.nanoTime()
+        for (i in 1..rounds)
+        {
+            fingerprintOf(filters)
+        }
+        val fingerprintNanos = (System.nanoTime() - start) / rounds
+
+        println("Hashing ${filters.size} filters: sort + MD5 ${md5Nanos / 1000} us, " +
+                "fingerprint ${fingerprintNanos / 1000} us")
+    }
+
+    private fun fingerprintOf(filters: Collection<String>): FilterFingerprint
+    {
+        val fingerprint = FilterFingerprint()
+        filters.forEach { fingerprint.add(it) }
+        return fingerprint
+    }
+
+    /**
+     * The hash used by filter store format version 1.
+     */
+    private fun sortedMd5(filters: Collection<String>): ByteArray
+    {
+        val md5 = MessageDigest.getInstance("MD5")
+        val sorted = ArrayList(filters)
+        Collections.sort(sorted)
+        sorted.forEach { md5.update(it.toByteArray(StandardCharsets.UTF_8)) }
+        return md5.digest()
+    }
+}
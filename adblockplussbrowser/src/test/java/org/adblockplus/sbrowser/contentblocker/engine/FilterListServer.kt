@@ -0,0 +1,231 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.net.URL
+import java.util.Collections
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Local stand-in for a filter list server, serving the latest of a number of list versions, either
+ * completely or as a [FilterDiff] against an older version.
+ */
+class FilterListServer(private val versions: Map<String, List<String>>,
+                       private val latest: String) : Closeable
+{
+    companion object {
+        const val PATH = "/easylist.txt"
+    }
+
+    /** Serve diffs, otherwise the diff parameter gets ignored like by servers not supporting it. */
+    var serveDiffs = true
+    /** Send a wrong fingerprint with every diff. */
+    var corruptFingerprint = false
+
+    /** Time each response gets delayed by. */
+    var latencyMillis = 0L
+    /** Entity tag sent with full lists, which also enables range requests for them. */
+    var etag: String? = null
+    /** Number of full list responses to cut off after [truncateAfterBytes]. */
+    var truncatedResponses = 0
+    var truncateAfterBytes = 0
+    /** Content encoding of full lists, used if the client accepts it. */
+    var contentEncoding: String? = null
+    /** Send "deflate" without the zlib wrapper, like some servers do. */
+    var rawDeflate = false
+
+    /** Accept-Encoding headers of all requests. */
+    val acceptEncodings: MutableList<String?> = Collections.synchronizedList(ArrayList<String?>())
+
+    /** Range headers of all requests. */
+    val ranges: MutableList<String?> = Collections.synchronizedList(ArrayList<String?>())
+    /** Number of body bytes sent with all responses. */
+    val sentBytes = AtomicInteger()
+
+    val requests: MutableList<String> = Collections.synchronizedList(ArrayList<String>())
+    /** Client ports of all requests, each port standing for one connection. */
+    val connections: MutableSet<Int> = Collections.synchronizedSet(HashSet<Int>())
+
+    private val active = AtomicInteger()
+    private val maxActive = AtomicInteger()
+    /** Highest number of requests handled at the same time. */
+    val maxConcurrentRequests: Int
+        get() = maxActive.get()
+
+    private val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+    private val executor = Executors.newCachedThreadPool()
+
+    init
+    {
+        server.createContext(PATH) { exchange -> handle(exchange) }
+        server.executor = executor
+        server.start()
+    }
+
+    val url: URL
+        get() = URL("http://127.0.0.1:${server.address.port}$PATH?addonName=test")
+
+    fun diffUrl(base: String): URL = URL("$url&diff=$base")
+
+    override fun close()
+    {
+        server.stop(0)
+        executor.shutdownNow()
+    }
+
+    private fun handle(exchange: HttpExchange)
+    {
+        val query = exchange.requestURI.rawQuery ?: ""
+        requests.add(query)
+        acceptEncodings.add(exchange.requestHeaders.getFirst("Accept-Encoding"))
+        connections.add(exchange.remoteAddress.port)
+        val current = active.incrementAndGet()
+        maxActive.accumulateAndGet(current) { a, b -> Math.max(a, b) }
+        try
+        {
+            if (latencyMillis > 0)
+            {
+                Thread.sleep(latencyMillis)
+            }
+            respondTo(exchange, query)
+        }
+        finally
+        {
+            active.decrementAndGet()
+        }
+    }
+
+    private fun respondTo(exchange: HttpExchange, query: String)
+    {
+        val base = query.split('&').firstOrNull { it.startsWith("diff=") }?.substring(5)
+        exchange.use {
+            when
+            {
+                base == null || !serveDiffs -> respondWithList(exchange)
+                versions.containsKey(base) -> respond(exchange, 200, diff(base))
+                else -> respond(exchange, 404, "")
+            }
+        }
+    }
+
+    private fun respond(exchange: HttpExchange, code: Int, body: String)
+    {
+        val bytes = body.toByteArray(Charsets.UTF_8)
+        exchange.sendResponseHeaders(code, if (bytes.isEmpty()) -1 else bytes.size.toLong())
+        if (bytes.isNotEmpty())
+        {
+            exchange.responseBody.write(bytes)
+            sentBytes.addAndGet(bytes.size)
+        }
+    }
+
+    /**
+     * Sends the full list, or the requested range of it if the If-Range validator matches.
+     */
+    private fun respondWithList(exchange: HttpExchange)
+    {
+        var bytes = fullList().toByteArray(Charsets.UTF_8)
+        val encoding = contentEncoding
+        if (encoding != null &&
+                exchange.requestHeaders.getFirst("Accept-Encoding")?.contains(encoding) == true)
+        {
+            bytes = encode(bytes, encoding)
+            exchange.responseHeaders.add("Content-Encoding", encoding)
+        }
+        val range = exchange.requestHeaders.getFirst("Range")
+        ranges.add(range)
+        etag?.let { exchange.responseHeaders.add("ETag", it) }
+
+        var offset = 0
+        if (range != null && etag != null && exchange.requestHeaders.getFirst("If-Range") == etag)
+        {
+            offset = range.removePrefix("bytes=").removeSuffix("-").toInt()
+            exchange.responseHeaders.add("Content-Range",
+                    "bytes $offset-${bytes.size - 1}/${bytes.size}")
+        }
+        exchange.sendResponseHeaders(if (offset > 0) 206 else 200, (bytes.size - offset).toLong())
+
+        var length = bytes.size - offset
+        if (truncatedResponses > 0)
+        {
+            truncatedResponses--
+            length = Math.min(length, truncateAfterBytes)
+        }
+        exchange.responseBody.write(bytes, offset, length)
+        exchange.responseBody.flush()
+        sentBytes.addAndGet(length)
+        if (offset + length < bytes.size)
+        {
+            // Drop the connection like a network handover would
+            throw IOException("Truncated response")
+        }
+    }
+
+    private fun encode(bytes: ByteArray, encoding: String): ByteArray
+    {
+        val encoded = ByteArrayOutputStream()
+        val out = when (encoding)
+        {
+            "gzip" -> GZIPOutputStream(encoded)
+            "deflate" -> DeflaterOutputStream(encoded, Deflater(Deflater.DEFAULT_COMPRESSION, rawDeflate))
+            else -> throw IllegalArgumentException("Unsupported encoding $encoding")
+        }
+        out.use { it.write(bytes) }
+        return encoded.toByteArray()
+    }
+
+    private fun fullList(): String
+    {
+        return "[Adblock Plus 2.0]\n! Version: $latest\n" +
+                versions.getValue(latest).joinToString("\n") + "\n"
+    }
+
+    private fun diff(base: String): String
+    {
+        val previous = versions.getValue(base).groupingBy { it }.eachCount()
+        val current = versions.getValue(latest).groupingBy { it }.eachCount()
+        val sb = StringBuilder("${FilterDiff.HEADER} 1.0]\n! Version: $latest\n! Base: $base\n")
+
+        val fingerprint = FilterFingerprint()
+        versions.getValue(latest).forEach { fingerprint.add(it) }
+        if (corruptFingerprint)
+        {
+            fingerprint.add("corrupt")
+        }
+        sb.append("! Fingerprint: ").append(fingerprint).append('\n')
+
+        for (filter in previous.keys + current.keys)
+        {
+            val delta = (current[filter] ?: 0) - (previous[filter] ?: 0)
+            repeat(Math.abs(delta)) {
+                sb.append(if (delta > 0) '+' else '-').append(filter).append('\n')
+            }
+        }
+        return sb.toString()
+    }
+}
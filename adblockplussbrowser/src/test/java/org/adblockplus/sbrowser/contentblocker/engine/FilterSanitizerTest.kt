@@ -0,0 +1,127 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+
+class FilterSanitizerTest
+{
+    private val sanitizer = FilterSanitizer.createDefault()
+
+    @Test
+    fun emptyPatternsAreRejected()
+    {
+        for (filter in listOf("|\$third-party", "||\$script", "@@|\$image", "@@||\$document"))
+        {
+            assertRejected(filter, "empty-pattern")
+        }
+        assertAccepted("||a.com^\$third-party")
+        assertAccepted("@@||a.com^\$document")
+    }
+
+    @Test
+    fun controlCharactersAreRejected()
+    {
+        for (c in listOf('\u0000', '\u0001', '\n', '\r', '\u001b', '\u001f'))
+        {
+            assertRejected("||a.com^${c}x", "control-character")
+        }
+    }
+
+    @Test
+    fun tabsAreAccepted()
+    {
+        assertAccepted("example.com##div[title=\"a\tb\"]")
+        assertAccepted("\t||a.com^")
+    }
+
+    @Test
+    fun deleteCharacterIsRejected()
+    {
+        assertRejected("||a.com^\u007f", "delete-character")
+    }
+
+    @Test
+    fun nonAsciiCharactersAreAccepted()
+    {
+        assertAccepted("||bücher.de^")
+        assertAccepted("例子.com##.广告")
+    }
+
+    @Test
+    fun rejectionsAreCountedPerRule()
+    {
+        sanitizer.accept("||\$script")
+        sanitizer.accept("a\u0000")
+        sanitizer.accept("b\u0000")
+        sanitizer.accept("||a.com^")
+        assertEquals(mapOf("empty-pattern" to 1, "control-character" to 2, "delete-character" to 0),
+                sanitizer.rejections)
+
+        sanitizer.resetRejections()
+        assertEquals(listOf(0, 0, 0), sanitizer.rejections.values.toList())
+    }
+
+    @Test
+    fun stringAndByteChecksAgree()
+    {
+        val inputs = listOf("", "|", "||", "@@", "@@|", "@@||", "\$", "|\$", "a\$", "||a.com^\$",
+                "|\$third-party", "||\$script", "@@|\$image", "@@||\$document", "||a.com^\$third-party",
+                "@@||a.com^\$document", "example.com##div[title=\"a\tb\"]", "\t||a.com^", "||a.com^\u007f",
+                "||bücher.de^", "例子.com##.广告", "\u0000", "\u007f", "ü\u0001", "\u0080\$") +
+                listOf('\u0000', '\u0001', '\n', '\r', '\u001b', '\u001f').map { "||a.com^${it}x" }
+        for (filter in inputs)
+        {
+            sanitizer.resetRejections()
+            val accepted = sanitizer.accept(filter)
+            val stringRejections = sanitizer.rejections
+            sanitizer.resetRejections()
+            assertEquals(filter, accepted, acceptBytes(filter))
+            assertEquals(filter, stringRejections, sanitizer.rejections)
+        }
+    }
+
+    /**
+     * Checks both the string and the byte based check, with the filter in the middle of a buffer.
+     */
+    private fun assertRejected(filter: String, rule: String)
+    {
+        sanitizer.resetRejections()
+        assertFalse(filter, sanitizer.accept(filter))
+        assertFalse(filter, acceptBytes(filter))
+        assertEquals(filter, 2, sanitizer.rejections.getValue(rule))
+    }
+
+    private fun assertAccepted(filter: String)
+    {
+        assertTrue(filter, sanitizer.accept(filter))
+        assertTrue(filter, acceptBytes(filter))
+    }
+
+    private fun acceptBytes(filter: String): Boolean
+    {
+        val bytes = "\$\u0000${filter}\u0000|".toByteArray(Charsets.UTF_8)
+        val offset = 2
+        val length = bytes.size - offset - 2
+        return sanitizer.accept(ByteBuffer.wrap(bytes), offset, length)
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.net.URL
+import java.security.MessageDigest
+import java.util.zip.GZIPOutputStream
+
+@RunWith(RobolectricTestRunner::class)
+class FilterStoreTest
+{
+    companion object
+    {
+        private val FILTERS = (0 until 2000).map { "||ad$it.example.com^" } +
+                listOf("", "example.com##.ad", "||bücher.example^", "##[title=\"été\"]")
+
+        /**
+         * Writes [filters] in the GZIP format used before filter stores existed.
+         */
+        fun writeLegacyFilters(file: File, filters: List<String>)
+        {
+            val sorted = filters.toSortedSet().toList()
+            DataOutputStream(GZIPOutputStream(FileOutputStream(file))).use { out ->
+                out.writeInt(sorted.size)
+                out.writeUTF(md5(sorted))
+                for (filter in sorted)
+                {
+                    val bytes = filter.toByteArray(Charsets.UTF_8)
+                    out.writeInt(bytes.size)
+                    out.write(bytes)
+                }
+            }
+        }
+
+        /**
+         * @return the filter hash of format version 1 and of legacy files
+         */
+        private fun md5(filters: List<String>): String
+        {
+            val md5 = MessageDigest.getInstance("MD5")
+            filters.sorted().forEach { md5.update(it.toByteArray(Charsets.UTF_8)) }
+            return md5.digest().joinToString("") { String.format("%02x", it) }
+        }
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var file: File
+    private var hash = ""
+
+    @Before
+    fun setup()
+    {
+        file = File(tempFolder.root, "list.sub")
+        FilterStore.Writer(file).use { writer ->
+            FILTERS.forEach { writer.add(it) }
+            hash = writer.finish()
+        }
+    }
+
+    @Test
+    fun filtersSurviveRoundTrip()
+    {
+        val store = FilterStore.open(file)
+        assertEquals(FilterStore.FORMAT_VERSION, store.version)
+        assertEquals(FILTERS.size, store.size())
+        assertEquals(hash, store.hash)
+        assertEquals(FILTERS, (0 until store.size()).map { store.getFilter(it) })
+        assertTrue(store.verify())
+    }
+
+    @Test
+    fun emptyStoreSurvivesRoundTrip()
+    {
+        FilterStore.Writer(file).use { it.finish() }
+        val store = FilterStore.open(file)
+        assertEquals(0, store.size())
+        assertTrue(store.verify())
+        assertEquals(0, file.length() % FilterStore.PAGE_SIZE)
+    }
+
+    @Test
+    fun dataIsPageAligned()
+    {
+        assertEquals(0, file.length() % FilterStore.PAGE_SIZE)
+        val first = FILTERS[0].toByteArray(Charsets.UTF_8)
+        val bytes = file.readBytes()
+        assertEquals(first.toList(), bytes.copyOfRange(FilterStore.PAGE_SIZE,
+                FilterStore.PAGE_SIZE + first.size).toList())
+    }
+
+    @Test
+    fun unfinishedWriteLeavesStoreUntouched()
+    {
+        val before = file.readBytes()
+        FilterStore.Writer(file).use { it.add("||other.example^") }
+        assertEquals(before.toList(), file.readBytes().toList())
+        assertEquals(FILTERS.size, FilterStore.open(file).size())
+    }
+
+    @Test
+    fun truncatedStoreIsRejected()
+    {
+        val length = file.length()
+        for (size in listOf(length - FilterStore.PAGE_SIZE, FilterStore.PAGE_SIZE + 100L, 100L, 0L))
+        {
+            RandomAccessFile(file, "rw").use { it.setLength(size) }
+            assertRejected()
+        }
+    }
+
+    @Test
+    fun corruptHeaderIsRejected()
+    {
+        val original = file.readBytes()
+        // magic, version, number of filters, data length, offset table
+        val patches = listOf(0 to 0x12345678, 4 to FilterStore.FORMAT_VERSION + 1, 4 to 0,
+                8 to Int.MAX_VALUE / 4, 8 to -1, 12 to readInt(12) + 1, 16 to readInt(16) - 4,
+                16 to Int.MAX_VALUE)
+        for ((offset, value) in patches)
+        {
+            file.writeBytes(original)
+            RandomAccessFile(file, "rw").use {
+                it.seek(offset.toLong())
+                it.writeInt(value)
+            }
+            assertRejected()
+        }
+    }
+
+    @Test
+    fun corruptDataFailsVerification()
+    {
+        RandomAccessFile(file, "rw").use {
+            it.seek(FilterStore.PAGE_SIZE + 2L)
+            it.write('x'.toInt())
+        }
+        assertFalse(FilterStore.open(file).verify())
+
+        val sub = Subscription.create(URL("https://example.com/list.txt"))
+        sub.readFilters(file, ArrayList())
+        assertFalse(sub.isFiltersValid)
+    }
+
+    @Test
+    fun legacyFileGetsMigrated()
+    {
+        writeLegacyFilters(file, FILTERS)
+        assertTrue(FilterStore.isLegacyFormat(file))
+
+        val sub = Subscription.create(URL("https://example.com/list.txt"))
+        val filters = ArrayList<String>()
+        sub.readFilters(file, filters)
+        assertTrue(sub.isFiltersValid)
+        assertEquals(FILTERS.sorted(), filters.sorted())
+
+        assertFalse(FilterStore.isLegacyFormat(file))
+        val store = FilterStore.open(file)
+        assertEquals(FilterStore.FORMAT_VERSION, store.version)
+        assertTrue(store.verify())
+        assertEquals(FILTERS.sorted(), (0 until store.size()).map { store.getFilter(it) }.sorted())
+    }
+
+    @Test
+    fun damagedLegacyFileIsNotMigrated()
+    {
+        writeLegacyFilters(file, FILTERS)
+        val bytes = file.readBytes()
+        file.writeBytes(bytes.copyOf(bytes.size / 2))
+
+        val sub = Subscription.create(URL("https://example.com/list.txt"))
+        sub.upgradeFilters(file)
+        assertFalse(sub.isFiltersValid)
+        assertTrue(FilterStore.isLegacyFormat(file))
+    }
+
+    @Test
+    fun versionOneStoreGetsMigrated()
+    {
+        // Version 1 differs from the current format only in the hash
+        val md5 = md5(FILTERS).toByteArray(Charsets.UTF_8)
+        RandomAccessFile(file, "rw").use {
+            it.seek(4)
+            it.writeInt(1)
+            it.seek(20)
+            it.writeShort(md5.size)
+            it.write(md5)
+        }
+        assertEquals(1, FilterStore.open(file).version)
+
+        val sub = Subscription.create(URL("https://example.com/list.txt"))
+        sub.upgradeFilters(file)
+        assertTrue(sub.isFiltersValid)
+        val store = FilterStore.open(file)
+        assertEquals(FilterStore.FORMAT_VERSION, store.version)
+        assertEquals(hash, store.hash)
+    }
+
+    private fun readInt(offset: Int) = RandomAccessFile(file, "r").use {
+        it.seek(offset.toLong())
+        it.readInt()
+    }
+
+    private fun assertRejected()
+    {
+        try
+        {
+            FilterStore.open(file)
+            throw AssertionError("Damaged filter store was opened")
+        }
+        catch (e: IOException)
+        {
+            // expected
+        }
+    }
+}
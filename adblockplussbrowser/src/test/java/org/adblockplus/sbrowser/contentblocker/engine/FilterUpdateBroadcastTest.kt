@@ -0,0 +1,136 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import android.content.Context
+import org.adblockplus.adblockplussbrowser.R
+import org.adblockplus.sbrowser.contentblocker.util.SharedPrefsUtils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.shadows.ShadowLooper
+import java.io.File
+import java.net.URL
+
+@RunWith(RobolectricTestRunner::class)
+class FilterUpdateBroadcastTest
+{
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val context: Context = RuntimeEnvironment.application
+    private lateinit var engine: Engine
+    private lateinit var cacheFolder: File
+
+    @Before
+    fun setup()
+    {
+        val constructor = Engine::class.java.getDeclaredConstructor(Context::class.java)
+        constructor.isAccessible = true
+        engine = constructor.newInstance(context)
+
+        // Where the engine looks for the filter files it has to clean up
+        cacheFolder = File(context.cacheDir, "subscriptions")
+        val subscriptions = Subscriptions.initialize(engine, tempFolder.newFolder(), cacheFolder)
+        val sub = subscriptions.add(Subscription.create(URL("https://example.com/easylist.txt"),
+                listOf("||ads.example.com^", "##.ad")))
+        sub.setEnabled(true)
+        subscriptions.persistSubscription(sub)
+        val field = Engine::class.java.getDeclaredField("subscriptions")
+        field.isAccessible = true
+        field.set(engine, subscriptions)
+    }
+
+    @Test
+    fun unchangedFiltersAreNotBroadcastAgain()
+    {
+        writeFileAndSendUpdateBroadcast()
+        val path = getString(R.string.key_cached_filter_path)
+        assertEquals(1, getInt(R.string.key_filter_update_broadcasts))
+        assertEquals(0, getInt(R.string.key_avoided_filter_update_broadcasts))
+        assertEquals(1, broadcastCount())
+
+        writeFileAndSendUpdateBroadcast()
+        writeFileAndSendUpdateBroadcast()
+        assertEquals(path, getString(R.string.key_cached_filter_path))
+        assertEquals(1, getInt(R.string.key_filter_update_broadcasts))
+        assertEquals(2, getInt(R.string.key_avoided_filter_update_broadcasts))
+        assertEquals(1, broadcastCount())
+    }
+
+    @Test
+    fun changedFiltersAreBroadcast()
+    {
+        writeFileAndSendUpdateBroadcast()
+        val fingerprint = getString(R.string.key_cached_filter_fingerprint)
+        assertEquals(1L, getLong(R.string.key_cached_filter_version))
+        assertEquals(2, getInt(R.string.key_cached_filter_count))
+
+        SharedPrefsUtils.putStringSet(context, R.string.key_whitelisted_websites,
+                setOf("example.com"))
+        writeFileAndSendUpdateBroadcast()
+        assertNotEquals(fingerprint, getString(R.string.key_cached_filter_fingerprint))
+        assertEquals(2L, getLong(R.string.key_cached_filter_version))
+        assertEquals(3, getInt(R.string.key_cached_filter_count))
+        assertEquals(2, getInt(R.string.key_filter_update_broadcasts))
+        assertEquals(0, getInt(R.string.key_avoided_filter_update_broadcasts))
+        assertEquals(2, broadcastCount())
+    }
+
+    @Test
+    fun failedWriteKeepsPreviousFile()
+    {
+        writeFileAndSendUpdateBroadcast()
+        val path = getString(R.string.key_cached_filter_path)
+        val fingerprint = getString(R.string.key_cached_filter_fingerprint)
+
+        // A file in place of the cache folder makes writing the filters fail
+        cacheFolder.deleteRecursively()
+        cacheFolder.writeText("")
+        SharedPrefsUtils.putStringSet(context, R.string.key_whitelisted_websites,
+                setOf("example.com"))
+        writeFileAndSendUpdateBroadcast()
+        assertEquals(path, getString(R.string.key_cached_filter_path))
+        assertEquals(fingerprint, getString(R.string.key_cached_filter_fingerprint))
+        assertEquals(1, getInt(R.string.key_filter_update_broadcasts))
+        assertEquals(1, broadcastCount())
+    }
+
+    private fun writeFileAndSendUpdateBroadcast()
+    {
+        val method = Engine::class.java.getDeclaredMethod("writeFileAndSendUpdateBroadcast")
+        method.isAccessible = true
+        method.invoke(engine)
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks()
+    }
+
+    private fun broadcastCount() = shadowOf(RuntimeEnvironment.application).broadcastIntents.size
+
+    private fun getString(key: Int) = SharedPrefsUtils.getString(context, key, null)
+
+    private fun getInt(key: Int) = SharedPrefsUtils.getInt(context, key, 0)
+
+    private fun getLong(key: Int) = SharedPrefsUtils.getLong(context, key, 0)
+}
@@ -0,0 +1,187 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.net.HttpURLConnection
+import java.util.zip.GZIPOutputStream
+
+@RunWith(RobolectricTestRunner::class)
+class HttpCompressionTest
+{
+    companion object
+    {
+        private val FILTERS = (0 until 2000).map { "||ad$it.example.com^" }
+        private const val READ_DELAY_MILLIS = 20L
+    }
+
+    private lateinit var server: FilterListServer
+    private lateinit var list: ByteArray
+
+    @Before
+    fun setup()
+    {
+        server = FilterListServer(mapOf("1" to FILTERS), "1")
+        list = ("[Adblock Plus 2.0]\n! Version: 1\n" + FILTERS.joinToString("\n") + "\n")
+                .toByteArray(Charsets.UTF_8)
+    }
+
+    @After
+    fun tearDown()
+    {
+        server.close()
+    }
+
+    @Test
+    fun compressionIsRequested()
+    {
+        fetch()
+        assertEquals(listOf(HttpCompression.ACCEPT_ENCODING), server.acceptEncodings)
+    }
+
+    @Test
+    fun gzipIsDecoded()
+    {
+        server.contentEncoding = "gzip"
+        assertCompressed(fetch(), "gzip")
+    }
+
+    @Test
+    fun deflateIsDecoded()
+    {
+        server.contentEncoding = "deflate"
+        assertCompressed(fetch(), "deflate")
+    }
+
+    @Test
+    fun rawDeflateIsDecoded()
+    {
+        server.contentEncoding = "deflate"
+        server.rawDeflate = true
+        assertCompressed(fetch(), "deflate")
+    }
+
+    @Test
+    fun uncompressedResponseIsPassedThrough()
+    {
+        val response = fetch()
+        assertEquals("identity", response.encoding)
+        assertEquals(list.size.toLong(), response.transferredBytes)
+        assertEquals(list.size.toLong(), response.decodedBytes)
+    }
+
+    @Test
+    fun decompressionTimeExcludesReading()
+    {
+        val compressed = ByteArrayOutputStream()
+        GZIPOutputStream(compressed).use { it.write(list) }
+        val slow = SlowInputStream(ByteArrayInputStream(compressed.toByteArray()))
+
+        val body = HttpCompression.decode(slow, "gzip")
+        body.use { assertEquals(list.toList(), it.readBytes().toList()) }
+        assertEquals(compressed.size().toLong(), body.transferredBytes)
+        assertTrue(slow.reads > 1)
+        assertTrue(body.decompressionMillis < slow.reads * READ_DELAY_MILLIS / 2)
+    }
+
+    @Test
+    fun spooledBytesAreNotCounted()
+    {
+        val compressed = ByteArrayOutputStream()
+        GZIPOutputStream(compressed).use { it.write(list) }
+        val bytes = compressed.toByteArray()
+        val spooled = bytes.size / 3
+        val transfer = HttpCompression.MeteredInputStream(
+                ByteArrayInputStream(bytes, spooled, bytes.size - spooled))
+
+        val body = HttpCompression.decode(
+                SequenceInputStream(ByteArrayInputStream(bytes, 0, spooled), transfer), "gzip",
+                transfer)
+        body.use { assertEquals(list.toList(), it.readBytes().toList()) }
+        assertEquals((bytes.size - spooled).toLong(), body.transferredBytes)
+        assertEquals(list.size.toLong(), body.decodedBytes)
+    }
+
+    @Test
+    fun nonPositiveSkipIsIgnored()
+    {
+        val body = HttpCompression.decode(ByteArrayInputStream(list), "identity")
+        assertEquals(0L, body.skip(0))
+        assertEquals(0L, body.skip(-1))
+        assertEquals(0L, body.decodedBytes)
+
+        val checksum = ChecksumInputStream(ByteArrayInputStream(list))
+        assertEquals(0L, checksum.skip(-1))
+        assertEquals(list.toList(), checksum.readBytes().toList())
+    }
+
+    private class Response(val encoding: String, val transferredBytes: Long, val decodedBytes: Long,
+                           val body: ByteArray)
+
+    private fun fetch(): Response
+    {
+        val connection = server.url.openConnection() as HttpURLConnection
+        HttpCompression.requestCompression(connection)
+        try
+        {
+            HttpCompression.openResponse(connection).use { body ->
+                val bytes = body.readBytes()
+                return Response(body.encoding, body.transferredBytes, body.decodedBytes, bytes)
+            }
+        }
+        finally
+        {
+            connection.disconnect()
+        }
+    }
+
+    private fun assertCompressed(response: Response, encoding: String)
+    {
+        assertEquals(encoding, response.encoding)
+        assertEquals(list.toList(), response.body.toList())
+        assertEquals(server.sentBytes.get().toLong(), response.transferredBytes)
+        assertEquals(list.size.toLong(), response.decodedBytes)
+        assertTrue(response.transferredBytes < response.decodedBytes / 4)
+    }
+
+    /**
+     * Delays every read, like waiting for the network.
+     */
+    private class SlowInputStream(input: InputStream) : FilterInputStream(input)
+    {
+        var reads = 0
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int
+        {
+            reads++
+            Thread.sleep(READ_DELAY_MILLIS)
+            return super.read(b, off, Math.min(len, 1024))
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import android.content.Context
+import org.adblockplus.adblockplussbrowser.R
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.File
+import java.io.FileInputStream
+import java.lang.management.ManagementFactory
+import java.net.URL
+
+@RunWith(RobolectricTestRunner::class)
+class MergeBenchmarkTest
+{
+    companion object
+    {
+        // Generous bounds: about 750 bytes per filter were measured for a full merge and about 10
+        // (the duplicate table) with passthrough.
+        private const val MAX_BYTES_PER_FILTER = 4096L
+        private const val MAX_PASSTHROUGH_BYTES_PER_FILTER = 64L
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var easylist: List<String>
+    private lateinit var engine: Engine
+
+    @Before
+    fun setup()
+    {
+        RuntimeEnvironment.application.resources.openRawResource(R.raw.easylist).use { input ->
+            easylist = Engine.readLines(input).filter { it.isNotEmpty() && !it.startsWith("!") && !it.startsWith("[") }
+        }
+        val constructor = Engine::class.java.getDeclaredConstructor(Context::class.java)
+        constructor.isAccessible = true
+        engine = constructor.newInstance(RuntimeEnvironment.application)
+    }
+
+    @Test
+    fun parallelRebuildIsDeterministic()
+    {
+        val appFolder = createSubscriptions(3)
+        assertEquals(rebuild(appFolder, 1).filters, rebuild(appFolder, 4).filters)
+    }
+
+    @Test
+    fun benchmarkFullRebuild()
+    {
+        for (lists in listOf(1, 3, 10))
+        {
+            val appFolder = createSubscriptions(lists)
+            // Warm up
+            rebuild(appFolder, 1)
+            val sequential = rebuild(appFolder, 1).nanos
+            val parallel = rebuild(appFolder, Runtime.getRuntime().availableProcessors()).nanos
+            println("Full rebuild of $lists lists: sequential ${sequential / 1000000} ms, " +
+                    "parallel ${parallel / 1000000} ms")
+        }
+    }
+
+    @Test
+    fun passthroughMergeWritesDistinctFilters()
+    {
+        val appFolder = createSubscriptions(3)
+        val written = rebuild(appFolder, 1, true).filters
+        val expected = (easylist + easylist.map { "$it|1" } + easylist.map { "$it|2" }).toSet()
+        assertEquals(expected, written.drop(2).toSet())
+        assertEquals(expected.size, written.size - 2)
+    }
+
+    @Test
+    fun benchmarkPassthroughAllocations()
+    {
+        val appFolder = createSubscriptions(3)
+        for (passthrough in listOf(false, true))
+        {
+            // Warm up
+            rebuild(appFolder, 1, passthrough)
+            val result = rebuild(appFolder, 1, passthrough)
+            val bytesPerFilter = result.allocatedBytes / result.filters.size
+            println("Rebuild of 3 lists, passthrough $passthrough: ${result.nanos / 1000000} ms, " +
+                    "${result.allocatedBytes / 1024} KiB allocated, $bytesPerFilter bytes per filter")
+            val limit = if (passthrough) MAX_PASSTHROUGH_BYTES_PER_FILTER else MAX_BYTES_PER_FILTER
+            assertTrue("$bytesPerFilter bytes per filter with passthrough $passthrough",
+                    bytesPerFilter <= limit)
+        }
+    }
+
+    /**
+     * Creates an app folder with {@code count} enabled subscriptions, each a variant of EasyList.
+     */
+    private fun createSubscriptions(count: Int): File
+    {
+        val appFolder = tempFolder.newFolder()
+        val subscriptions = Subscriptions.initialize(engine, appFolder, tempFolder.newFolder())
+        for (i in 0 until count)
+        {
+            val filters = if (i == 0) easylist else easylist.map { "$it|$i" }
+            val sub = subscriptions.add(Subscription.create(URL("https://example.com/list$i.txt"), filters))
+            sub.setEnabled(true)
+        }
+        subscriptions.persistSubscriptions()
+        return appFolder
+    }
+
+    private class Rebuild(val nanos: Long, val allocatedBytes: Long, val filters: List<String>)
+
+    /**
+     * Merges all subscriptions from scratch, measuring the time it takes and the memory allocated
+     * by the calling thread.
+     */
+    private fun rebuild(appFolder: File, threads: Int, passthrough: Boolean = false): Rebuild
+    {
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        File(appFolder, "merged_filters.idx").delete()
+        val subscriptions = Subscriptions.initialize(engine, appFolder, tempFolder.newFolder())
+        subscriptions.setDecodeThreads(threads)
+        subscriptions.setPassthroughMerge(passthrough)
+        val allocated = threadBean.getThreadAllocatedBytes(Thread.currentThread().id)
+        val start = System.nanoTime()
+        val file = subscriptions.createAndWriteFile(emptyList())
+        val nanos = System.nanoTime() - start
+        return Rebuild(nanos, threadBean.getThreadAllocatedBytes(Thread.currentThread().id) - allocated,
+                FileInputStream(file).use { Engine.readLines(it) })
+    }
+}
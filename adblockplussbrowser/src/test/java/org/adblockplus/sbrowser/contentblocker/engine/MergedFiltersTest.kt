@@ -0,0 +1,212 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import android.content.Context
+import org.adblockplus.adblockplussbrowser.R
+import org.adblockplus.sbrowser.contentblocker.util.SharedPrefsUtils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.File
+import java.io.RandomAccessFile
+import java.net.URL
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class MergedFiltersTest
+{
+    companion object
+    {
+        private const val EASYLIST = "url:https://easylist-downloads.adblockplus.org/easylist.txt"
+        private const val ACCEPTABLE_ADS = "url:https://easylist-downloads.adblockplus.org/exceptionrules.txt"
+        private val EASYLIST_FILTERS = listOf("||a.com^", "##.ad", "||shared.com^")
+        private val ACCEPTABLE_ADS_FILTERS = listOf("@@||good.com^", "||shared.com^")
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    @Test
+    fun sharedFiltersAreReferenceCounted()
+    {
+        val merged = MergedFilters.load(File(tempFolder.root, "merged_filters.idx"))
+        merged.addSource(EASYLIST, "1", EASYLIST_FILTERS)
+        merged.addSource(ACCEPTABLE_ADS, "2", ACCEPTABLE_ADS_FILTERS)
+        assertMerged(EASYLIST_FILTERS + ACCEPTABLE_ADS_FILTERS, merged)
+
+        // Disabling a subscription keeps the filters another one still contains
+        merged.removeSource(EASYLIST, EASYLIST_FILTERS)
+        assertMerged(ACCEPTABLE_ADS_FILTERS, merged)
+        assertEquals(setOf(ACCEPTABLE_ADS), merged.sources.keys)
+
+        merged.addSource(EASYLIST, "1", EASYLIST_FILTERS)
+        assertMerged(EASYLIST_FILTERS + ACCEPTABLE_ADS_FILTERS, merged)
+
+        merged.removeSource(ACCEPTABLE_ADS, ACCEPTABLE_ADS_FILTERS)
+        assertMerged(EASYLIST_FILTERS, merged)
+
+        merged.removeSource(EASYLIST, EASYLIST_FILTERS)
+        assertMerged(emptyList(), merged)
+        assertTrue(merged.sources.isEmpty())
+    }
+
+    @Test
+    fun replaceSourceAppliesDifference()
+    {
+        val merged = MergedFilters.load(File(tempFolder.root, "merged_filters.idx"))
+        merged.addSource(EASYLIST, "1", EASYLIST_FILTERS)
+        merged.addSource(ACCEPTABLE_ADS, "2", ACCEPTABLE_ADS_FILTERS)
+
+        val updated = listOf("||a.com^", "||b.com^")
+        val store = filterStore(updated)
+        val previous = HashMap(EASYLIST_FILTERS.associate { it to 1 })
+        assertEquals(3, merged.replaceSource(EASYLIST, store.hash, previous, store))
+        assertTrue(previous.isEmpty())
+
+        assertMerged(updated + ACCEPTABLE_ADS_FILTERS, merged)
+        assertEquals(store.hash, merged.getSourceHash(EASYLIST))
+
+        merged.removeSource(EASYLIST, updated)
+        assertMerged(ACCEPTABLE_ADS_FILTERS, merged)
+    }
+
+    @Test
+    fun indexSurvivesRestart()
+    {
+        val file = File(tempFolder.root, "merged_filters.idx")
+        val merged = MergedFilters.load(file)
+        merged.addSource(EASYLIST, "1", EASYLIST_FILTERS)
+        merged.addSource(ACCEPTABLE_ADS, "2", ACCEPTABLE_ADS_FILTERS)
+        merged.save()
+
+        val reloaded = MergedFilters.load(file)
+        assertEquals(merged.sources, reloaded.sources)
+        assertEquals(merged.filters, reloaded.filters)
+        assertEquals(merged.fingerprint, reloaded.fingerprint)
+
+        // The reference counts were persisted as well
+        reloaded.removeSource(EASYLIST, EASYLIST_FILTERS)
+        assertMerged(ACCEPTABLE_ADS_FILTERS, reloaded)
+    }
+
+    @Test
+    fun damagedIndexLoadsEmpty()
+    {
+        val file = File(tempFolder.root, "merged_filters.idx")
+        val merged = MergedFilters.load(file)
+        merged.addSource(EASYLIST, "1", EASYLIST_FILTERS)
+        merged.save()
+        file.writeBytes(file.readBytes().copyOf(file.length().toInt() - 5))
+
+        val reloaded = MergedFilters.load(file)
+        assertEquals(0, reloaded.size())
+        assertTrue(reloaded.sources.isEmpty())
+    }
+
+    @Test
+    fun completedUpdateStopsDownloads()
+    {
+        val constructor = Engine::class.java.getDeclaredConstructor(Context::class.java)
+        constructor.isAccessible = true
+        val engine = constructor.newInstance(RuntimeEnvironment.application)
+        engine.downloadDir.mkdirs()
+        val downloader = Downloader.create(engine, 1, 1)
+        setField(engine, "downloader", downloader)
+        setField(engine, "appInfo", AppInfo.Builder().build())
+        // Background downloads wait for Wi-Fi by default, Robolectric only has a mobile network
+        SharedPrefsUtils.putString(RuntimeEnvironment.application, R.string.key_automatic_updates,
+                "2")
+
+        FilterListServer(mapOf("1" to EASYLIST_FILTERS), "1").use { server ->
+            val appFolder = tempFolder.newFolder()
+            val initial = Subscriptions.initialize(engine, appFolder, tempFolder.newFolder())
+            val sub = initial.add(Subscription.create(server.url, EASYLIST_FILTERS))
+            sub.setEnabled(true)
+            initial.persistSubscription(sub)
+            initial.commitMetaData()
+            RandomAccessFile(initial.getFiltersFile(sub), "rw").use {
+                it.seek(FilterStore.PAGE_SIZE + 2L)
+                it.write('x'.toInt())
+            }
+
+            // Merging finds the damaged store and downloads the list again
+            val subscriptions = Subscriptions.initialize(engine, appFolder, tempFolder.newFolder())
+            subscriptions.computeOutputFingerprint(emptyList())
+            awaitIdle(downloader)
+            assertEquals(1, server.requests.size)
+
+            val response = tempFolder.newFile()
+            Subscription.create(server.url, EASYLIST_FILTERS).serializeFilters(response)
+            subscriptions.updateSubscription(sub.id, 200, response, HashMap(), HashMap())
+            assertFalse(response.exists())
+            val loaded = ArrayList<Subscription>()
+            subscriptions.loadSubscriptions(loaded)
+            val updated = loaded.first { it.id == sub.id }
+            assertTrue(updated.isFiltersValid)
+            assertTrue(updated.isMetaDataValid)
+
+            // Forced downloads are only skipped within a minute of the last one
+            updated.putMeta(Subscription.KEY_UPDATE_TIMESTAMP, "0")
+            subscriptions.computeOutputFingerprint(emptyList())
+            awaitIdle(downloader)
+            assertEquals(1, server.requests.size)
+        }
+    }
+
+    private fun assertMerged(expected: Collection<String>, merged: MergedFilters)
+    {
+        assertEquals(expected.toSet(), merged.filters)
+        assertEquals(fingerprintOf(expected.toSet()), merged.fingerprint)
+    }
+
+    private fun filterStore(filters: List<String>): FilterStore
+    {
+        val file = tempFolder.newFile()
+        Subscription.create(URL("https://example.com/list.txt"), filters).serializeFilters(file)
+        return FilterStore.open(file)
+    }
+
+    private fun setField(engine: Engine, name: String, value: Any)
+    {
+        val field = Engine::class.java.getDeclaredField(name)
+        field.isAccessible = true
+        field.set(engine, value)
+    }
+
+    private fun awaitIdle(downloader: Downloader)
+    {
+        val idle = CountDownLatch(1)
+        downloader.runWhenIdle { idle.countDown() }
+        assertTrue(idle.await(30, TimeUnit.SECONDS))
+    }
+
+    private fun fingerprintOf(filters: Collection<String>): FilterFingerprint
+    {
+        val fingerprint = FilterFingerprint()
+        filters.forEach { fingerprint.add(it) }
+        return fingerprint
+    }
+}
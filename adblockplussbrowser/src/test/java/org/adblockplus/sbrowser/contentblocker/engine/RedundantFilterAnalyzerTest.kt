@@ -0,0 +1,87 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class RedundantFilterAnalyzerTest
+{
+    private fun redundant(vararg filters: String): List<String>
+    {
+        val analyzer = RedundantFilterAnalyzer(10000)
+        filters.forEach { analyzer.add(it) }
+        return filters.filter { analyzer.isRedundant(it) }
+    }
+
+    @Test
+    fun filtersForSubdomainsAreCovered()
+    {
+        assertEquals(listOf("||ads.example.com^", "||a.ads.example.com^"),
+                redundant("||example.com^", "||ads.example.com^", "||a.ads.example.com^"))
+    }
+
+    @Test
+    fun optionsNeedToMatch()
+    {
+        assertEquals(listOf("||ads.example.com^\$script,third-party"),
+                redundant("||example.com^\$script,third-party", "||ads.example.com^\$script,third-party",
+                        "||cdn.example.com^\$script", "||img.example.com^"))
+    }
+
+    @Test
+    fun blockingAndExceptionFiltersAreSeparate()
+    {
+        assertEquals(listOf("@@||ads.example.com^"),
+                redundant("@@||example.com^", "@@||ads.example.com^", "||ads.example.com^"))
+    }
+
+    @Test
+    fun otherPatternsAreIgnored()
+    {
+        assertEquals(emptyList<String>(),
+                redundant("||example.com^", "||example.com.evil^", "||ads.example.com/banner",
+                        "||ads.example.com", "|https://ads.example.com^", "||*.example.com^"))
+    }
+
+    @Test
+    fun nothingIsDroppedAboveLimit()
+    {
+        val filters = listOf("||example.com^", "||1.example.com^", "||2.example.com^")
+        for (limit in 2..3)
+        {
+            val analyzer = RedundantFilterAnalyzer(limit)
+            filters.forEach { analyzer.add(it) }
+            assertEquals(limit < filters.size, analyzer.isExhausted)
+            assertEquals(if (limit < filters.size) 0 else 2,
+                    filters.count { analyzer.isRedundant(it) })
+        }
+    }
+
+    @Test
+    fun onlyHostFiltersCountTowardsLimit()
+    {
+        val analyzer = RedundantFilterAnalyzer(2)
+        analyzer.add("||example.com^")
+        analyzer.add("example.com##.ad")
+        analyzer.add("/banner/*")
+        analyzer.add("||ads.example.com^")
+        assertEquals(false, analyzer.isExhausted)
+        assertEquals(true, analyzer.isRedundant("||ads.example.com^"))
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.net.URL
+
+@RunWith(RobolectricTestRunner::class)
+class RetryBackoffTest
+{
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    @Test
+    fun backoffDoublesWithJitterUpToMaximum()
+    {
+        for (attempt in 0..10)
+        {
+            val backoff = Math.min(1000L shl attempt, 60000L)
+            repeat(100) {
+                val delay = Backoff.delay(attempt, 1000, 60000)
+                assertTrue("$delay for attempt $attempt", delay in backoff / 2..backoff)
+            }
+        }
+    }
+
+    @Test
+    fun hostGetsBlockedAfterRepeatedFailures()
+    {
+        val breaker = HostCircuitBreaker(3, 1000, 10000)
+        assertFalse(breaker.recordFailure("example.com", 0))
+        assertFalse(breaker.recordFailure("example.com", 0))
+        assertTrue(breaker.recordFailure("example.com", 0))
+
+        assertTrue(breaker.getBlockedMillis("example.com", 0) in 500..1000)
+        assertEquals(0, breaker.getBlockedMillis("example.org", 0))
+        assertEquals(0, breaker.getBlockedMillis("example.com", 1000))
+    }
+
+    @Test
+    fun failureAfterBlockBlocksLonger()
+    {
+        val breaker = HostCircuitBreaker(1, 1000, 10000)
+        breaker.recordFailure("example.com", 0)
+        breaker.recordFailure("example.com", 1000)
+        assertTrue(breaker.getBlockedMillis("example.com", 1000) in 1000..2000)
+    }
+
+    @Test
+    fun successUnblocksHost()
+    {
+        val breaker = HostCircuitBreaker(1, 1000, 10000)
+        breaker.recordFailure("example.com", 0)
+        breaker.recordSuccess("example.com")
+        assertEquals(0, breaker.getBlockedMillis("example.com", 0))
+        // Failures start counting again
+        assertTrue(breaker.recordFailure("example.com", 0))
+        assertTrue(breaker.getBlockedMillis("example.com", 0) <= 1000)
+    }
+
+    @Test
+    fun retryStateSurvivesRestart()
+    {
+        val manifestFile = tempFolder.newFile()
+        val filtersFile = tempFolder.newFile()
+        val sub = Subscription.create(URL("https://example.com/list.txt"))
+        val start = System.currentTimeMillis()
+        sub.updateSubscription(-1, null, null, null, filtersFile)
+        sub.updateSubscription(503, null, null, null, filtersFile)
+        SubscriptionManifest.open(manifestFile).apply {
+            sub.serializeMetaData(this)
+            commit()
+        }
+
+        val entry = SubscriptionManifest.open(manifestFile).entries.getValue(sub.id)
+        val restored = Subscription.deserializeSubscription(entry)!!
+        assertEquals(2, restored.retryCount)
+        assertTrue(restored.nextRetryTimestamp > start)
+        assertFalse(restored.shouldUpdate(false))
+
+        restored.updateSubscription(304, null, null, null, filtersFile)
+        assertEquals(0, restored.retryCount)
+    }
+}
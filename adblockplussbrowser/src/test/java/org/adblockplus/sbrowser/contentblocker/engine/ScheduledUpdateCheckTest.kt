@@ -0,0 +1,122 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import android.app.job.JobInfo
+import android.app.job.JobScheduler
+import android.content.ComponentName
+import android.content.Context
+import android.os.PersistableBundle
+import org.adblockplus.adblockplussbrowser.R
+import org.adblockplus.sbrowser.contentblocker.util.SharedPrefsUtils
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+
+@RunWith(RobolectricTestRunner::class)
+class ScheduledUpdateCheckTest
+{
+    private lateinit var engine: Engine
+    private lateinit var scheduler: JobScheduler
+
+    @Before
+    fun setup()
+    {
+        val context = RuntimeEnvironment.application
+        val constructor = Engine::class.java.getDeclaredConstructor(Context::class.java)
+        constructor.isAccessible = true
+        engine = constructor.newInstance(context)
+        scheduler = context.getSystemService(Context.JOB_SCHEDULER_SERVICE) as JobScheduler
+    }
+
+    private fun scheduleUpdateChecks(): Boolean
+    {
+        val method = Engine::class.java.getDeclaredMethod("scheduleUpdateChecks")
+        method.isAccessible = true
+        return method.invoke(engine) as Boolean
+    }
+
+    @Test
+    fun updateCheckJobIsPersistedAndPeriodic()
+    {
+        assertTrue(scheduleUpdateChecks())
+
+        val job = scheduler.allPendingJobs.single()
+        assertEquals(Engine.JOB_ID_UPDATE_CHECK, job.id)
+        assertTrue(job.isPersisted)
+        assertTrue(job.isPeriodic)
+        assertFalse(job.isRequireDeviceIdle)
+        assertEquals(JobInfo.NETWORK_TYPE_UNMETERED, job.networkType)
+    }
+
+    @Test
+    fun jobsOfOlderVersionsGetCancelled()
+    {
+        val component = ComponentName(RuntimeEnvironment.application, DownloadJobService::class.java)
+        scheduleUpdateChecks()
+        for (id in 0..2)
+        {
+            scheduler.schedule(legacyJob(id, component))
+        }
+
+        assertTrue(scheduleUpdateChecks())
+        assertEquals(listOf(Engine.JOB_ID_UPDATE_CHECK), scheduler.allPendingJobs.map { it.id })
+        assertTrue(scheduler.allPendingJobs.single().isPeriodic)
+    }
+
+    @Test
+    fun otherJobsAreKept()
+    {
+        val other = ComponentName(RuntimeEnvironment.application, "org.example.OtherJobService")
+        scheduler.schedule(JobInfo.Builder(2, other)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY).build())
+        scheduler.schedule(legacyJob(3, other))
+
+        scheduleUpdateChecks()
+        assertEquals(listOf(Engine.JOB_ID_UPDATE_CHECK, 2, 3),
+                scheduler.allPendingJobs.map { it.id }.sorted())
+    }
+
+    @Test
+    fun networkTypeFollowsAutomaticUpdatesSetting()
+    {
+        scheduleUpdateChecks()
+        val context = RuntimeEnvironment.application
+        SharedPrefsUtils.putString(context, R.string.key_automatic_updates,
+                context.getString(R.string.download_settings_value_always))
+        scheduleUpdateChecks()
+
+        assertEquals(JobInfo.NETWORK_TYPE_ANY, scheduler.allPendingJobs.single().networkType)
+    }
+
+    private fun legacyJob(id: Int, component: ComponentName): JobInfo
+    {
+        val extras = PersistableBundle()
+        extras.putString("_extra_id", "url:https://notification.adblockplus.org/notification.json")
+        extras.putString("_extra_url", "https://notification.adblockplus.org/notification.json")
+        return JobInfo.Builder(id, component)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setExtras(extras)
+                .build()
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import android.content.Context
+import org.adblockplus.adblockplussbrowser.R
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.net.URL
+import java.util.zip.GZIPOutputStream
+
+@RunWith(RobolectricTestRunner::class)
+class SubscriptionLoadingTest
+{
+    companion object
+    {
+        private const val LISTS = 4
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var easylist: List<String>
+    private lateinit var engine: Engine
+
+    @Before
+    fun setup()
+    {
+        RuntimeEnvironment.application.resources.openRawResource(R.raw.easylist).use { input ->
+            easylist = Engine.readLines(input).filter { it.isNotEmpty() && !it.startsWith("!") && !it.startsWith("[") }
+        }
+        val constructor = Engine::class.java.getDeclaredConstructor(Context::class.java)
+        constructor.isAccessible = true
+        engine = constructor.newInstance(RuntimeEnvironment.application)
+    }
+
+    @Test
+    fun persistedNotificationIsNotTreatedAsFilters()
+    {
+        val appFolder = tempFolder.newFolder()
+        val subscriptions = Subscriptions.initialize(engine, appFolder, tempFolder.newFolder())
+        val notification = subscriptions.add(Subscription.create(Notification.NOTIFICATION_URL))
+        notification.setEnabled(true)
+        subscriptions.persistSubscriptions()
+
+        // Older versions stored the notification gzipped
+        val json = ByteArrayOutputStream()
+        GZIPOutputStream(json).use {
+            it.write("{\"notifications\": [{\"id\": \"a\", \"type\": \"information\"}]}".toByteArray())
+        }
+        val file = subscriptions.getFiltersFile(notification)
+        file.writeBytes(json.toByteArray())
+
+        val loaded = ArrayList<Subscription>()
+        Subscriptions.initialize(engine, appFolder, tempFolder.newFolder()).loadSubscriptions(loaded)
+        val reloaded = loaded.first { it.id == notification.id }
+        assertTrue(reloaded.isEnabled)
+        assertTrue(reloaded.isFiltersValid)
+        assertArrayEquals(json.toByteArray(), file.readBytes())
+    }
+
+    @Test
+    fun parallelLoadingMigratesLegacyStores()
+    {
+        for (threads in listOf(1, LISTS))
+        {
+            val appFolder = createSubscriptions(true)
+            val subscriptions = Subscriptions.initialize(engine, appFolder, tempFolder.newFolder(),
+                    threads)
+            val loaded = ArrayList<Subscription>()
+            subscriptions.loadSubscriptions(loaded)
+            val lists = loaded.filter { it.url != null }
+            assertEquals(LISTS, lists.size)
+            for (sub in lists)
+            {
+                assertTrue(sub.isFiltersValid)
+                assertFalse(FilterStore.isLegacyFormat(subscriptions.getFiltersFile(sub)))
+            }
+        }
+    }
+
+    @Test
+    fun damagedManifestKeepsSubscriptions()
+    {
+        val appFolder = createSubscriptions(false)
+        val manifestFile = appFolder.walk().first { it.name == "subscriptions.manifest" }
+        val data = manifestFile.readBytes()
+        data[0] = (data[0].toInt() xor 1).toByte()
+        manifestFile.writeBytes(data)
+
+        val loaded = ArrayList<Subscription>()
+        Subscriptions.initialize(engine, appFolder, tempFolder.newFolder()).loadSubscriptions(loaded)
+        val lists = loaded.filter { it.url != null }
+        assertEquals(LISTS, lists.size)
+        assertTrue(lists.all { it.isEnabled && it.isMetaDataValid })
+        assertFalse(SubscriptionManifest.open(manifestFile).isDamaged)
+    }
+
+    @Test
+    fun benchmarkLoading()
+    {
+        for (legacy in listOf(false, true))
+        {
+            // Warm up
+            load(createSubscriptions(legacy), 1)
+            val sequential = load(createSubscriptions(legacy), 1)
+            val parallel = load(createSubscriptions(legacy), LISTS)
+            println("Loading $LISTS lists, legacy stores $legacy: sequential " +
+                    "${sequential / 1000000} ms, parallel ${parallel / 1000000} ms")
+        }
+    }
+
+    /**
+     * Creates an app folder with {@code LISTS} enabled subscriptions, each a variant of EasyList.
+     * With {@code legacy}, the filters are written in the format used before filter stores.
+     */
+    private fun createSubscriptions(legacy: Boolean): File
+    {
+        val appFolder = tempFolder.newFolder()
+        val subscriptions = Subscriptions.initialize(engine, appFolder, tempFolder.newFolder())
+        for (i in 0 until LISTS)
+        {
+            val filters = if (i == 0) easylist else easylist.map { "$it|$i" }
+            val sub = subscriptions.add(Subscription.create(URL("https://example.com/list$i.txt"), filters))
+            sub.setEnabled(true)
+            subscriptions.persistSubscription(sub)
+            if (legacy)
+            {
+                FilterStoreTest.writeLegacyFilters(subscriptions.getFiltersFile(sub), filters)
+            }
+        }
+        subscriptions.commitMetaData()
+        return appFolder
+    }
+
+    private fun load(appFolder: File, threads: Int): Long
+    {
+        val start = System.nanoTime()
+        Subscriptions.initialize(engine, appFolder, tempFolder.newFolder(), threads)
+        return System.nanoTime() - start
+    }
+}
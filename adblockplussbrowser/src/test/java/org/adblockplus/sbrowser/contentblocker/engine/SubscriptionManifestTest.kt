@@ -0,0 +1,161 @@
+/*
+ * This file is part of Adblock Plus <https://adblockplus.org/>,
+ * Copyright (C) 2006-present eyeo GmbH
+ *
+ * Adblock Plus is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License version 3 as
+ * published by the Free Software Foundation.
+ *
+ * Adblock Plus is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Adblock Plus.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.adblockplus.sbrowser.contentblocker.engine
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import java.io.File
+
+@RunWith(RobolectricTestRunner::class)
+class SubscriptionManifestTest
+{
+    companion object
+    {
+        private const val COMPACTION_THRESHOLD = 64 * 1024
+    }
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private lateinit var file: File
+
+    @Before
+    fun setup()
+    {
+        file = File(tempFolder.root, "subscriptions.manifest")
+    }
+
+    @Test
+    fun replayRestoresLatestState()
+    {
+        val manifest = SubscriptionManifest.open(file)
+        assertFalse(manifest.existed())
+        manifest.put("a", "https://a.com/list.txt", mapOf("version" to "1"))
+        manifest.put("b", "https://b.com/list.txt", mapOf("version" to "1"))
+        manifest.commit()
+        manifest.put("a", "https://a.com/list.txt", mapOf("version" to "2"))
+        manifest.remove("b")
+        manifest.put("c", "https://c.com/list.txt", mapOf("version" to "1"))
+        manifest.commit()
+
+        val reopened = SubscriptionManifest.open(file)
+        assertTrue(reopened.existed())
+        assertEquals(mapOf("a" to "2", "c" to "1"), versions(reopened))
+        assertEquals(listOf("a", "c"), reopened.entries.keys.toList())
+        assertEquals("https://c.com/list.txt", reopened.entries.getValue("c").url)
+    }
+
+    @Test
+    fun truncatedTailIsDropped()
+    {
+        val manifest = SubscriptionManifest.open(file)
+        manifest.put("a", "https://a.com/list.txt", mapOf("version" to "1"))
+        manifest.put("b", "https://b.com/list.txt", mapOf("version" to "1"))
+        manifest.commit()
+        val committed = file.length().toInt()
+        manifest.put("a", "https://a.com/list.txt", mapOf("version" to "2"))
+        manifest.put("c", "https://c.com/list.txt", mapOf("version" to "1"))
+        manifest.commit()
+
+        // The process died while appending the second commit
+        file.writeBytes(file.readBytes().copyOf(committed + 5))
+        val recovered = SubscriptionManifest.open(file)
+        assertEquals(mapOf("a" to "1", "b" to "1"), versions(recovered))
+
+        // The next commit replaces the incomplete record
+        recovered.put("d", "https://d.com/list.txt", mapOf("version" to "1"))
+        recovered.commit()
+        assertEquals(mapOf("a" to "1", "b" to "1", "d" to "1"),
+                versions(SubscriptionManifest.open(file)))
+    }
+
+    @Test
+    fun corruptTailRecordIsDropped()
+    {
+        val manifest = SubscriptionManifest.open(file)
+        manifest.put("a", "https://a.com/list.txt", mapOf("version" to "1"))
+        manifest.commit()
+        manifest.put("a", "https://a.com/list.txt", mapOf("version" to "2"))
+        manifest.commit()
+
+        val data = file.readBytes()
+        // Inside the payload of the last record, in front of its CRC
+        data[data.size - 6] = (data[data.size - 6].toInt() xor 1).toByte()
+        file.writeBytes(data)
+        val recovered = SubscriptionManifest.open(file)
+        assertEquals(mapOf("a" to "1"), versions(recovered))
+
+        recovered.put("b", "https://b.com/list.txt", mapOf("version" to "1"))
+        recovered.commit()
+        assertEquals(mapOf("a" to "1", "b" to "1"), versions(SubscriptionManifest.open(file)))
+    }
+
+    @Test
+    fun damagedHeaderKeepsRecords()
+    {
+        val manifest = SubscriptionManifest.open(file)
+        manifest.put("a", "https://a.com/list.txt", mapOf("version" to "1"))
+        manifest.commit()
+        manifest.put("b", "https://b.com/list.txt", mapOf("version" to "1"))
+        manifest.commit()
+
+        val data = file.readBytes()
+        data[0] = (data[0].toInt() xor 1).toByte()
+        file.writeBytes(data)
+        val recovered = SubscriptionManifest.open(file)
+        assertTrue(recovered.isDamaged)
+        assertEquals(mapOf("a" to "1", "b" to "1"), versions(recovered))
+
+        // The next commit writes a new header
+        recovered.put("c", "https://c.com/list.txt", mapOf("version" to "1"))
+        recovered.commit()
+        val reopened = SubscriptionManifest.open(file)
+        assertFalse(reopened.isDamaged)
+        assertEquals(mapOf("a" to "1", "b" to "1", "c" to "1"), versions(reopened))
+    }
+
+    @Test
+    fun compactionKeepsLiveRecords()
+    {
+        val manifest = SubscriptionManifest.open(file)
+        val padding = "x".repeat(1000)
+        var maxLength = 0L
+        for (i in 0 until 200)
+        {
+            manifest.put("a", "https://a.com/list.txt", mapOf("version" to "$i", "padding" to padding))
+            manifest.put("b", "https://b.com/list.txt", mapOf("version" to "$i"))
+            manifest.commit()
+            maxLength = Math.max(maxLength, file.length())
+        }
+
+        assertTrue(maxLength <= COMPACTION_THRESHOLD)
+        assertTrue(file.length() < COMPACTION_THRESHOLD)
+        assertEquals(mapOf("a" to "199", "b" to "199"), versions(SubscriptionManifest.open(file)))
+        assertEquals(listOf(file.name), tempFolder.root.list().toList())
+    }
+
+    private fun versions(manifest: SubscriptionManifest) =
+            manifest.entries.mapValues { it.value.meta.getValue("version") }
+}